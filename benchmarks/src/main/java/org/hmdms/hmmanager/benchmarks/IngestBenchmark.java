@@ -0,0 +1,86 @@
+package org.hmdms.hmmanager.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hmdms.hmmanager.core.user.LoginRequest;
+import org.hmdms.hmmanager.msg.MessageInfo;
+import org.hmdms.hmmanager.msg.MessageInfoFactory;
+import org.hmdms.hmmanager.msg.TopicC;
+import org.hmdms.hmmanager.utils.JsonMappers;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of getting a login request from the delivery body to the subscriber.
+ * {@link IngestBenchmark#stringReparse(Blackhole)} reproduces the former path, that decoded the body into a string,
+ * parsed it with a new mapper, serialized the message property again and parsed that three more times in the
+ * subscriber. {@link IngestBenchmark#parseOnce(Blackhole)} is the current path, that parses the body once and shares
+ * the tree. Run with {@code -prof gc} to compare the allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class IngestBenchmark {
+    /**
+     * Body of a login request, as it is delivered by the message queue
+     */
+    private byte[] body;
+
+    /**
+     * Builds the delivery body
+     */
+    @Setup
+    public void setup() {
+        this.body = "{\"topic\":\"AUTH\",\"message\":{\"username\":\"user\",\"password\":\"secret\"}}"
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Former ingest path
+     * @param bh Blackhole
+     * @throws Exception When the body could not be parsed
+     */
+    @Benchmark
+    public void stringReparse(Blackhole bh) throws Exception {
+        // Coordinator
+        String message = new String(this.body, StandardCharsets.UTF_8);
+        JsonNode node = new ObjectMapper().readTree(message);
+        TopicC topic = TopicC.valueOf(node.get("topic").asText());
+        MessageInfo mi = MessageInfoFactory.createDefaultMessageInfo();
+        mi.setJsonMessage(node.get("message").toString());
+        bh.consume(topic);
+
+        // Subscriber, two property checks and the login itself each parsed the message again
+        String json = mi.getJsonMessage();
+        bh.consume(new ObjectMapper().readTree(json).has("username"));
+        bh.consume(new ObjectMapper().readTree(json).has("password"));
+        JsonNode login = new ObjectMapper().readTree(json);
+        bh.consume(login.get("username").asText());
+        bh.consume(login.get("password").asText());
+    }
+
+    /**
+     * Current ingest path
+     * @param bh Blackhole
+     * @throws Exception When the body could not be parsed
+     */
+    @Benchmark
+    public void parseOnce(Blackhole bh) throws Exception {
+        // Coordinator
+        MessageInfo mi = MessageInfoFactory.createMessageInfo(this.body, null);
+        JsonNode node = mi.getTree();
+        bh.consume(TopicC.valueOf(node.get("topic").asText()));
+
+        // Subscriber
+        LoginRequest login = JsonMappers.LOGIN_REQUEST_READER.readValue(mi.getMessageNode());
+        bh.consume(login.isComplete());
+        bh.consume(login.getUsername());
+        bh.consume(login.getPassword());
+    }
+}
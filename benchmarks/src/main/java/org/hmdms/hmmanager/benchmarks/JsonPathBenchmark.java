@@ -0,0 +1,89 @@
+package org.hmdms.hmmanager.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.hmdms.hmmanager.utils.JsonMappers;
+import org.hmdms.hmmanager.utils.JsonPathExtractor;
+import org.hmdms.hmmanager.utils.JsonUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares checking two properties of a request with tree based {@link JsonUtils#jsonHasProperty(JsonNode, String)}
+ * against the streaming {@link JsonPathExtractor}. The request carries a larger attachment list, that is placed
+ * either in front of or behind the wanted properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class JsonPathBenchmark {
+    /**
+     * Position of the attachment list relative to the wanted properties
+     */
+    @Param({"before", "after"})
+    public String attachments;
+    /**
+     * Request to be checked
+     */
+    private String json;
+    /**
+     * Compiled extractor for the wanted properties
+     */
+    private JsonPathExtractor extractor;
+
+    /**
+     * Builds the request and compiles the extractor
+     */
+    @Setup
+    public void setup() {
+        StringBuilder list = new StringBuilder("\"attachments\":[");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) list.append(',');
+            list.append("{\"id\":").append(i).append(",\"name\":\"file-").append(i)
+                    .append(".pdf\",\"tags\":[\"a\",\"b\"],\"size\":").append(i * 1024).append('}');
+        }
+        list.append(']');
+        String login = "\"username\":\"user\",\"password\":\"secret\"";
+        this.json = "{\"message\":{" + ("before".equals(this.attachments)
+                ? list + "," + login
+                : login + "," + list) + "}}";
+        this.extractor = JsonPathExtractor.compile("message.username", "message.password");
+    }
+
+    /**
+     * Former approach, that parsed the whole request for every property
+     * @param bh Blackhole
+     * @throws Exception When the request could not be parsed
+     */
+    @Benchmark
+    public void treePerProperty(Blackhole bh) throws Exception {
+        bh.consume(JsonUtils.jsonHasProperty(JsonMappers.TREE_READER.readTree(this.json), "message.username"));
+        bh.consume(JsonUtils.jsonHasProperty(JsonMappers.TREE_READER.readTree(this.json), "message.password"));
+    }
+
+    /**
+     * Parses the whole request once and checks both properties on the tree
+     * @param bh Blackhole
+     * @throws Exception When the request could not be parsed
+     */
+    @Benchmark
+    public void treeOnce(Blackhole bh) throws Exception {
+        JsonNode node = JsonMappers.TREE_READER.readTree(this.json);
+        bh.consume(JsonUtils.jsonHasProperty(node, "message.username"));
+        bh.consume(JsonUtils.jsonHasProperty(node, "message.password"));
+    }
+
+    /**
+     * Extracts both properties in a single streaming pass
+     * @param bh Blackhole
+     * @throws Exception When the request could not be parsed
+     */
+    @Benchmark
+    public void streaming(Blackhole bh) throws Exception {
+        bh.consume(this.extractor.extract(this.json));
+    }
+}
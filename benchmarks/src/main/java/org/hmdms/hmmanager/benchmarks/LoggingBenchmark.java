@@ -0,0 +1,99 @@
+package org.hmdms.hmmanager.benchmarks;
+
+import org.hmdms.hmmanager.msg.MessageInfo;
+import org.hmdms.hmmanager.msg.MessageInfoFactory;
+import org.hmdms.hmmanager.utils.LoggingUtils;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of log statements in hot paths, whose level is disabled, as it is the case for debug and trace
+ * in production. {@link LoggingBenchmark#eagerMessage()} and {@link LoggingBenchmark#eagerException()} reproduce the
+ * former statements, that built their message before the logger could discard it.
+ * {@link LoggingBenchmark#parameterisedMessage()} and {@link LoggingBenchmark#guardedException()} are the current
+ * ones, that only format their message once the level is known to be enabled. Run with {@code -prof gc} to compare
+ * the allocation per statement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class LoggingBenchmark {
+    /**
+     * Logger, that only logs warnings and errors with the benchmark configuration
+     */
+    private static final Logger logger = LoggerFactory.getLogger(LoggingBenchmark.class);
+    /**
+     * Message, that is logged
+     */
+    private MessageInfo mi;
+    /**
+     * Exception, that is logged
+     */
+    private Exception ex;
+
+    /**
+     * Builds a message with a login request and an exception with a stacktrace of a few frames
+     */
+    @Setup
+    public void setup() {
+        this.mi = MessageInfoFactory.createDefaultMessageInfo();
+        this.mi.setJsonMessage("{\"username\":\"user\",\"password\":\"secret\"}");
+        this.ex = this.nested(8);
+    }
+
+    /**
+     * Creates an exception {@param depth} frames below the caller
+     * @param depth Number of frames to add to the stacktrace
+     * @return New exception
+     */
+    private Exception nested(int depth) {
+        if (depth == 0) return new IllegalStateException("Something went wrong");
+        return this.nested(depth - 1);
+    }
+
+    /**
+     * Former message of the broker, that serialized the whole message, before the level was checked
+     */
+    @Benchmark
+    public void eagerMessage() {
+        logger.debug("Adding message " + this.mi + " to message queue");
+    }
+
+    /**
+     * Current message of the broker, that is only formatted, if debug is enabled
+     */
+    @Benchmark
+    public void parameterisedMessage() {
+        logger.debug("Adding message {} to message queue", this.mi.getId());
+    }
+
+    /**
+     * Former {@link LoggingUtils#logException(Exception, Logger, String, String)}, that always formatted the message
+     * and built the stacktrace string
+     */
+    @Benchmark
+    public void eagerException() {
+        logger.info(String.format("%s occurred while handling message: %s", this.ex.getClass().getName(),
+                this.ex.getMessage()));
+        StringBuilder sb = new StringBuilder();
+        for (var stel : this.ex.getStackTrace()) {
+            sb.append(stel.toString());
+            sb.append("\n\t");
+        }
+        logger.trace(sb.toString());
+    }
+
+    /**
+     * Current {@link LoggingUtils#logException(Exception, Logger, String, String)}, that checks the levels first
+     */
+    @Benchmark
+    public void guardedException() {
+        LoggingUtils.logException(this.ex, logger, "info", "%s occurred while handling message: %s");
+    }
+}
@@ -0,0 +1,254 @@
+package org.hmdms.hmmanager.benchmarks;
+
+import com.rabbitmq.client.AMQP;
+import org.hmdms.hmmanager.msg.Broker;
+import org.hmdms.hmmanager.msg.Coordinator;
+import org.hmdms.hmmanager.msg.MessageInfo;
+import org.hmdms.hmmanager.msg.MessageInfoFactory;
+import org.hmdms.hmmanager.msg.ReplyPublisher;
+import org.hmdms.hmmanager.msg.TopicC;
+import org.hmdms.hmmanager.msg.subscribers.Subscriber;
+import org.hmdms.hmmanager.msg.transport.InMemoryTransport;
+import org.hmdms.hmmanager.msg.transport.InboundChannel;
+import org.hmdms.hmmanager.sys.StateC;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a request through the messaging pipeline and waits for its reply:
+ * {@link Coordinator#newMessage(TopicC, MessageInfo)} places it in a broker, the broker hands it to a subscriber with
+ * {@link Subscriber#notify(java.util.ArrayList)}, the subscriber answers it through the {@link ReplyPublisher} and
+ * the reply arrives in the reply queue of the requesting thread.
+ * Runs without a message queue or database. The coordinator uses an {@link InMemoryTransport}, requests go to the
+ * {@link TopicC#TEST} topic, whose subscribers answer every request with a constant, and replies are only
+ * acknowledged. Throughput and latency percentiles are measured with 1, 4 and 16 requesting threads, run with
+ * {@code -prof gc} for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class PipelineBenchmark {
+    /**
+     * Body of a request, as it is delivered by the message queue
+     */
+    private static final byte[] BODY = "{\"topic\":\"TEST\",\"message\":{\"n\":1}}".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Number of subscribers of the test topic per broker
+     */
+    private static final int SUBSCRIBERS_PER_BROKER = 2;
+    /**
+     * Number of brokers of the coordinator. Scaling is turned off, so echo subscribers exist in every broker and the
+     * results do not depend on scaling decisions
+     */
+    private static final int BROKERS = 2;
+
+    /**
+     * Subscriber answering every request with the same constant
+     */
+    public static class EchoSubscriber extends Subscriber {
+        /**
+         * Creates a subscriber of the test topic
+         * @param replyPublisher Publisher the subscriber answers with
+         */
+        public EchoSubscriber(ReplyPublisher replyPublisher) {
+            super(replyPublisher);
+            this.topic = TopicC.TEST;
+        }
+
+        /**
+         * Answers the request with a constant
+         * @param mi Request to answer
+         */
+        @Override
+        protected void handleMessage(MessageInfo mi) {
+            this.answerRequest(mi.getMessageProps(), "ok");
+        }
+    }
+
+    /**
+     * Requesting thread with a reply queue of its own
+     */
+    @State(Scope.Thread)
+    public static class Requester {
+        /**
+         * Source of the reply queue names
+         */
+        private static final AtomicInteger nextId = new AtomicInteger(0);
+        /**
+         * Name of the reply queue of the thread
+         */
+        private String replyQueue;
+        /**
+         * Channel the replies are consumed on
+         */
+        private InboundChannel replies;
+        /**
+         * Executor the replies are handled on
+         */
+        private ExecutorService executor;
+        /**
+         * Benchmark thread, that waits for the replies
+         */
+        private volatile Thread owner;
+        /**
+         * Number of requests sent
+         */
+        private long sent = 0;
+        /**
+         * Number of replies received
+         */
+        private volatile long received = 0;
+
+        /**
+         * Opens the reply queue of the thread
+         * @param bench State of the benchmark
+         * @throws Exception When the reply queue could not be consumed
+         */
+        @Setup(Level.Trial)
+        public void setup(PipelineBenchmark bench) throws Exception {
+            this.replyQueue = "bench-reply-" + nextId.incrementAndGet();
+            this.executor = Executors.newSingleThreadExecutor();
+            this.replies = bench.transport.openInbound(this.replyQueue, 0, this.executor, this.replyQueue);
+            this.replies.consume((tag, props, body) -> {
+                try {
+                    this.replies.ack(tag, false);
+                } catch (Exception ignored) {
+                }
+                // Only the executor of the reply queue writes the counter
+                this.received = this.received + 1;
+                LockSupport.unpark(this.owner);
+            });
+        }
+
+        /**
+         * Closes the reply queue of the thread
+         * @throws Exception When the reply queue could not be closed
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.replies.close();
+            this.executor.shutdownNow();
+        }
+
+        /**
+         * Sends a request and waits for its reply
+         * @param coordinator Coordinator the request is given to
+         */
+        private void roundTrip(Coordinator coordinator) {
+            this.owner = Thread.currentThread();
+            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+                    .replyTo(this.replyQueue)
+                    .correlationId(Long.toString(++this.sent))
+                    .build();
+            MessageInfo mi = MessageInfoFactory.createMessageInfo(BODY, props);
+            if (!coordinator.newMessage(TopicC.TEST, mi)) {
+                MessageInfoFactory.recycle(mi);
+                throw new IllegalStateException("Request was rejected, the brokers are full");
+            }
+            while (this.received < this.sent) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    /**
+     * Transport shared by the coordinator and the requesting threads
+     */
+    private InMemoryTransport transport;
+    /**
+     * Coordinator under test
+     */
+    private Coordinator coordinator;
+    /**
+     * Thread running the dispatch loop of the coordinator
+     */
+    private Thread coordinatorThread;
+    /**
+     * Publisher the echo subscribers answer with
+     */
+    private ReplyPublisher replyPublisher;
+
+    /**
+     * Starts the coordinator with a fixed number of brokers and adds echo subscribers to all of its brokers
+     * @throws Exception When the coordinator could not be created or did not start in time
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Properties prop = new Properties();
+        try (InputStream in = Coordinator.class.getClassLoader().getResourceAsStream("config.properties")) {
+            prop.load(in);
+        }
+        prop.setProperty("msg.scaling.brokers", String.valueOf(BROKERS));
+        prop.setProperty("msg.scaling.brokers.autoScaling", "false");
+
+        this.transport = new InMemoryTransport();
+        this.coordinator = new Coordinator(this.transport, prop);
+        this.coordinatorThread = new Thread(this.coordinator, "coordinator");
+        this.coordinatorThread.setDaemon(true);
+        this.coordinatorThread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.coordinator.getState() != StateC.WORKING) {
+            if (System.nanoTime() - deadline >= 0) throw new IllegalStateException("Coordinator did not start");
+            Thread.sleep(10);
+        }
+
+        this.replyPublisher = new ReplyPublisher(this.transport, 16, false, 1);
+        for (Broker b : this.coordinator.getBrokers()) {
+            for (int i = 0; i < SUBSCRIBERS_PER_BROKER; i++) {
+                b.addSubscriber(new EchoSubscriber(this.replyPublisher));
+            }
+        }
+    }
+
+    /**
+     * Stops the coordinator, which destroys its brokers and subscribers
+     * @throws Exception When waiting for the coordinator was interrupted
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.coordinator.setState(StateC.STOPPED);
+        this.coordinatorThread.join(TimeUnit.SECONDS.toMillis(10));
+        this.replyPublisher.close();
+    }
+
+    /**
+     * Round trip of a request with a single requesting thread
+     * @param requester State of the requesting thread
+     */
+    @Benchmark
+    @Threads(1)
+    public void threads1(Requester requester) {
+        requester.roundTrip(this.coordinator);
+    }
+
+    /**
+     * Round trip of a request with 4 requesting threads
+     * @param requester State of the requesting thread
+     */
+    @Benchmark
+    @Threads(4)
+    public void threads4(Requester requester) {
+        requester.roundTrip(this.coordinator);
+    }
+
+    /**
+     * Round trip of a request with 16 requesting threads
+     * @param requester State of the requesting thread
+     */
+    @Benchmark
+    @Threads(16)
+    public void threads16(Requester requester) {
+        requester.roundTrip(this.coordinator);
+    }
+}
@@ -83,7 +83,7 @@ public class Element implements IFillable, Serializable {
      */
     public Element(String guid) {
         this.guid = guid;
-        this.logger.debug(String.format("Instantiating element for guid %s", guid));
+        this.logger.debug("Instantiating element for guid {}", guid);
     }
 
     /**
@@ -104,7 +104,7 @@ public class Element implements IFillable, Serializable {
         boolean set = false;
         for (var key : this.metadata) {
             if (key.getName().equals(name)) {
-                this.logger.debug(String.format("Setting value %s on key %s for element %s", value, name, this));
+                this.logger.debug("Setting value {} on key {} for element {}", value, name, this.guid);
                 key.setValue(value);
                 set = true;
                 break;
@@ -113,7 +113,7 @@ public class Element implements IFillable, Serializable {
 
         // If value hasn't been set, no key with given name exists
         if (!set) {
-            this.logger.info(String.format("MetaValue with name %s not found", name));
+            this.logger.info("MetaValue with name {} not found", name);
             throw new IllegalArgumentException(String.format("MetaValue with name %s not found", name));
         }
     }
@@ -0,0 +1,73 @@
+package org.hmdms.hmmanager.core.user;
+
+import java.io.Serializable;
+
+/**
+ * Represents a request of a user to log into the system
+ */
+public class LoginRequest implements Serializable {
+    /**
+     * Name of the user that wants to log in
+     */
+    private String username;
+    /**
+     * Password given by the user
+     */
+    private String password;
+
+    /**
+     * Creates an empty LoginRequest object
+     */
+    public LoginRequest() { }
+
+    /**
+     * Gets the name of the user that wants to log in
+     * @return name of the user
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Sets the name of the user that wants to log in
+     * @param username name of the user
+     */
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Gets the password given by the user
+     * @return password given by the user
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Sets the password given by the user
+     * @param password password given by the user
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Checks, whether username and password were both given
+     * @return True, if neither username nor password are missing
+     */
+    public boolean isComplete() {
+        return this.username != null && this.password != null;
+    }
+
+    /**
+     * Builds String representation of the request without the password and returns it
+     * @return String representation of the request
+     */
+    @Override
+    public String toString() {
+        return "LoginRequest{" +
+                "username='" + username + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,68 @@
+package org.hmdms.hmmanager.core.user;
+
+/**
+ * Outcome of a single login of a batch. Either holds the ticket of the user or the reason the login failed, which
+ * is the exception a single login would have thrown.
+ */
+public class LoginResult {
+    /**
+     * Ticket issued for the user, null if the login failed
+     */
+    private final UserTicket ticket;
+    /**
+     * Reason the login failed, null if it succeeded
+     */
+    private final Exception failure;
+
+    /**
+     * Creates a new result
+     * @param ticket Ticket issued for the user, null if the login failed
+     * @param failure Reason the login failed, null if it succeeded
+     */
+    private LoginResult(UserTicket ticket, Exception failure) {
+        this.ticket = ticket;
+        this.failure = failure;
+    }
+
+    /**
+     * Creates the result of a successful login
+     * @param ticket Ticket issued for the user
+     * @return Successful result
+     */
+    public static LoginResult succeeded(UserTicket ticket) {
+        return new LoginResult(ticket, null);
+    }
+
+    /**
+     * Creates the result of a failed login
+     * @param failure Reason the login failed
+     * @return Failed result
+     */
+    public static LoginResult failed(Exception failure) {
+        return new LoginResult(null, failure);
+    }
+
+    /**
+     * Checks, whether the login succeeded
+     * @return True, if a ticket was issued
+     */
+    public boolean isSuccessful() {
+        return this.ticket != null;
+    }
+
+    /**
+     * Returns the ticket issued for the user
+     * @return Ticket of the user, null if the login failed
+     */
+    public UserTicket getTicket() {
+        return ticket;
+    }
+
+    /**
+     * Returns the reason the login failed
+     * @return Reason of the failure, null if the login succeeded
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+}
@@ -10,13 +10,14 @@ import java.io.InputStream;
 import java.io.ObjectInputFilter;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
 
 /**
  * Class for executing connecting to a database and executing sql queries on that database
  */
-public class DBConnection {
+public class DBConnection implements AutoCloseable {
     /**
      * Logger
      */
@@ -41,6 +42,10 @@ public class DBConnection {
      * Password of {@link DBConnection#user}.
      */
     private String password;
+    /**
+     * True, while the connection was opened with {@link DBConnection#open()} and is kept open between queries
+     */
+    private boolean held = false;
 
     /**
      * Default constructor for DBConnection object.
@@ -167,6 +172,136 @@ public class DBConnection {
         return rs;
     }
 
+    /**
+     * Executes the select {@param sql} with {@param params} bound to its placeholders and reads all fetched rows,
+     * before the connection is closed again, unless it is held open. String arrays are bound as sql arrays, e.g. for
+     * {@code = ANY(?)}.
+     * @param sql Select statement with a placeholder for every parameter
+     * @param params Values of the placeholders, in order
+     * @return Values of all fetched rows, one array per row
+     * @throws SQLException When connecting to the database or executing the statement failed
+     * @throws IllegalArgumentException When no statement is given
+     */
+    public ArrayList<Object[]> query(String sql, Object... params) throws SQLException, IllegalArgumentException {
+        if (sql == null || sql.isEmpty()) {
+            this.logger.debug("Empty query given");
+            throw new IllegalArgumentException("Empty query");
+        }
+
+        boolean own = this.connectUnlessHeld();
+        try (PreparedStatement st = this.dbConnection.prepareStatement(sql)) {
+            this.bind(st, params);
+            ArrayList<Object[]> rows = new ArrayList<>();
+            try (ResultSet rs = st.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+            }
+            return rows;
+        } finally {
+            if (own && !this.dbConnection.isClosed()) this.disconnect();
+        }
+    }
+
+    /**
+     * Executes {@param sql} once for every entry of {@param rows} in a single batch and transaction, so either all
+     * rows are written or none. The connection is closed again afterwards, unless it is held open.
+     * @param sql Statement with a placeholder for every value of a row
+     * @param rows Values of the placeholders for every execution, in order
+     * @return Number of modified rows for every execution
+     * @throws SQLException When connecting to the database or executing the batch failed
+     * @throws IllegalArgumentException When no statement is given
+     */
+    public int[] executeBatch(String sql, List<Object[]> rows) throws SQLException, IllegalArgumentException {
+        if (sql == null || sql.isEmpty()) {
+            this.logger.debug("Empty query given");
+            throw new IllegalArgumentException("Empty query");
+        }
+        if (rows == null || rows.isEmpty()) return new int[0];
+
+        boolean own = this.connectUnlessHeld();
+        try (PreparedStatement st = this.dbConnection.prepareStatement(sql)) {
+            this.dbConnection.setAutoCommit(false);
+            for (Object[] row : rows) {
+                this.bind(st, row);
+                st.addBatch();
+            }
+            int[] counts = st.executeBatch();
+            this.dbConnection.commit();
+            return counts;
+        } catch (SQLException ex) {
+            try {
+                this.dbConnection.rollback();
+            } catch (SQLException rollbackEx) {
+                // Keep the reason the batch failed, the failed rollback is only attached to it
+                ex.addSuppressed(rollbackEx);
+            }
+            throw ex;
+        } finally {
+            if (own) {
+                if (!this.dbConnection.isClosed()) this.disconnect();
+            } else if (!this.dbConnection.isClosed()) {
+                this.dbConnection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Connects to the database and keeps the connection open for all following calls of
+     * {@link DBConnection#query(String, Object...)} and {@link DBConnection#executeBatch(String, List)}, until
+     * {@link DBConnection#close()} is called
+     * @return This connection
+     * @throws SQLException When the connection to the database could not be established
+     */
+    public DBConnection open() throws SQLException {
+        this.connect();
+        this.held = true;
+        return this;
+    }
+
+    /**
+     * Closes the connection opened with {@link DBConnection#open()}. Does nothing, if it is not open.
+     * @throws SQLException When closing the connection failed
+     */
+    @Override
+    public void close() throws SQLException {
+        if (!this.held) return;
+        this.held = false;
+        if (this.dbConnection != null && !this.dbConnection.isClosed()) this.disconnect();
+    }
+
+    /**
+     * Connects to the database, unless the connection is held open by {@link DBConnection#open()}
+     * @return True, if a connection was opened, that has to be closed by the caller
+     * @throws SQLException When the connection to the database could not be established
+     */
+    private boolean connectUnlessHeld() throws SQLException {
+        if (this.held && this.dbConnection != null && !this.dbConnection.isClosed()) return false;
+        this.connect();
+        return true;
+    }
+
+    /**
+     * Binds {@param params} to the placeholders of {@param st}. String arrays are bound as varchar arrays.
+     * @param st Statement to bind the values to
+     * @param params Values of the placeholders, in order
+     * @throws SQLException When a value could not be bound
+     */
+    private void bind(PreparedStatement st, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof String[] values) {
+                st.setArray(i + 1, this.dbConnection.createArrayOf("varchar", values));
+            } else {
+                st.setObject(i + 1, params[i]);
+            }
+        }
+    }
+
     /**
      * If this instance is already connected to a database, the connection is closed.
      * Afterwards a new connection to the database is created calling {@link DriverManager#getConnection(String, String, String)}
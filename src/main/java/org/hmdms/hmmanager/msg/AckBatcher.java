@@ -0,0 +1,251 @@
+package org.hmdms.hmmanager.msg;
+
+import org.hmdms.hmmanager.msg.transport.InboundChannel;
+import org.hmdms.hmmanager.utils.LoggingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledges deliveries of a single consumer channel in batches.
+ * Every delivery is registered with {@link AckBatcher#received(long)} and marked as done with
+ * {@link AckBatcher#completed(long)}. Acknowledgements are sent with multiple=true for all deliveries up to the
+ * oldest delivery that is not completed yet, as soon as enough deliveries were completed or the oldest completed
+ * delivery waited long enough. Deliveries completed out of order are therefore never acknowledged early.
+ * Once the oldest delivery is outstanding for longer than the maximum gap, e.g. because its subscriber hangs, the
+ * deliveries completed after it are acknowledged one by one, so they do not use up the prefetch window.
+ * Deliveries that could not be handled right now are given back with {@link AckBatcher#rejected(long)}, or after a
+ * delay with {@link AckBatcher#rejected(long, long)}, so they are not redelivered right away while there is still no
+ * room for them.
+ */
+public class AckBatcher {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(AckBatcher.class);
+    /**
+     * Default time in milliseconds the oldest delivery may be outstanding, before later deliveries are acknowledged
+     * one by one
+     */
+    public static final long DEFAULT_MAX_GAP_MILLIS = 1000;
+    /**
+     * Channel the deliveries were received on
+     */
+    private final InboundChannel channel;
+    /**
+     * Number of completed deliveries after which acknowledgements are sent
+     */
+    private final int batchSize;
+    /**
+     * Maximum time in nanoseconds a completed delivery waits for its acknowledgement
+     */
+    private final long maxDelayNanos;
+    /**
+     * Maximum time in nanoseconds the oldest delivery may be outstanding, before later deliveries are acknowledged
+     * one by one
+     */
+    private final long maxGapNanos;
+    /**
+     * Delivery tags of all received deliveries that have not been completed yet, with the time in nanoseconds they
+     * were received at
+     */
+    private final TreeMap<Long, Long> outstanding = new TreeMap<>();
+    /**
+     * Delivery tags of all completed deliveries, that have not been acknowledged yet
+     */
+    private final TreeSet<Long> completed = new TreeSet<>();
+    /**
+     * Delivery tags of all deliveries that were rejected or acknowledged one by one after the last acknowledgement
+     * with multiple=true. These are not known to the server anymore, so an acknowledgement must never end on one of
+     * them.
+     */
+    private final TreeSet<Long> settled = new TreeSet<>();
+    /**
+     * Delivery tags of all rejected deliveries, that are given back once their delay passed
+     */
+    private final TreeSet<Long> delayedRejects = new TreeSet<>();
+    /**
+     * Highest delivery tag that was received
+     */
+    private long highestReceived = 0;
+    /**
+     * Highest delivery tag that was acknowledged
+     */
+    private long lastAcked = 0;
+    /**
+     * Number of deliveries completed since acknowledgements were last sent
+     */
+    private int completedSinceFlush = 0;
+    /**
+     * Time in nanoseconds at which the first delivery since the last flush was completed
+     */
+    private long firstCompletedAt = 0;
+    /**
+     * Flushes acknowledgements of deliveries that waited too long
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Creates a new batcher for {@param channel}, that acknowledges deliveries one by one after a gap of
+     * {@link AckBatcher#DEFAULT_MAX_GAP_MILLIS}
+     * @param channel Channel the deliveries are received on
+     * @param batchSize Number of completed deliveries after which acknowledgements are sent
+     * @param maxDelayMillis Maximum time in milliseconds a completed delivery waits for its acknowledgement
+     * @throws IllegalArgumentException When no channel is given
+     */
+    public AckBatcher(InboundChannel channel, int batchSize, long maxDelayMillis) throws IllegalArgumentException {
+        this(channel, batchSize, maxDelayMillis, DEFAULT_MAX_GAP_MILLIS);
+    }
+
+    /**
+     * Creates a new batcher for {@param channel}
+     * @param channel Channel the deliveries are received on
+     * @param batchSize Number of completed deliveries after which acknowledgements are sent
+     * @param maxDelayMillis Maximum time in milliseconds a completed delivery waits for its acknowledgement
+     * @param maxGapMillis Maximum time in milliseconds the oldest delivery may be outstanding, before later
+     * deliveries are acknowledged one by one
+     * @throws IllegalArgumentException When no channel is given
+     */
+    public AckBatcher(InboundChannel channel, int batchSize, long maxDelayMillis, long maxGapMillis)
+            throws IllegalArgumentException {
+        if (channel == null) throw new IllegalArgumentException("No channel given");
+        this.channel = channel;
+        this.batchSize = Math.max(1, batchSize);
+        // The timer needs a positive period, a delay of 0 flushes as often as possible
+        long delayMillis = Math.max(1, maxDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.maxGapNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxGapMillis));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ack-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.scheduleAtFixedRate(this::flushIfDue, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a new delivery, that must not be acknowledged before it is completed
+     * @param deliveryTag Delivery tag of the new delivery
+     */
+    public synchronized void received(long deliveryTag) {
+        this.outstanding.put(deliveryTag, System.nanoTime());
+        this.highestReceived = Math.max(this.highestReceived, deliveryTag);
+    }
+
+    /**
+     * Marks a delivery as completed and sends acknowledgements, if the batch is full
+     * @param deliveryTag Delivery tag of the completed delivery
+     */
+    public synchronized void completed(long deliveryTag) {
+        if (this.outstanding.remove(deliveryTag) == null) return;
+        this.completed.add(deliveryTag);
+        if (this.completedSinceFlush++ == 0) this.firstCompletedAt = System.nanoTime();
+        if (this.completedSinceFlush >= this.batchSize) this.flush();
+    }
+
+    /**
+     * Rejects a delivery and lets the server requeue it, so it is delivered again later or to another consumer
+     * @param deliveryTag Delivery tag of the rejected delivery
+     */
+    public synchronized void rejected(long deliveryTag) {
+        if (this.outstanding.remove(deliveryTag) == null) return;
+        try {
+            this.channel.nack(deliveryTag, false, true);
+            this.settled.add(deliveryTag);
+            logger.trace("Rejected delivery {}", deliveryTag);
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, logger, "warn", "%s occurred while rejecting delivery: %s");
+        }
+    }
+
+    /**
+     * Rejects a delivery after {@param delayMillis}. Until then, the delivery stays outstanding, so it is not
+     * redelivered right away, e.g. while the queues of its topic are still full.
+     * @param deliveryTag Delivery tag of the rejected delivery
+     * @param delayMillis Time in milliseconds after which the delivery is given back, 0 or less to give it back now
+     */
+    public synchronized void rejected(long deliveryTag, long delayMillis) {
+        if (delayMillis <= 0) {
+            this.rejected(deliveryTag);
+            return;
+        }
+        if (!this.outstanding.containsKey(deliveryTag) || !this.delayedRejects.add(deliveryTag)) return;
+        try {
+            this.timer.schedule(() -> this.rejectDelayed(deliveryTag), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // The batcher is closed already, give the delivery back right away
+            this.rejectDelayed(deliveryTag);
+        }
+    }
+
+    /**
+     * Rejects a delivery, whose delay passed
+     * @param deliveryTag Delivery tag of the rejected delivery
+     */
+    private synchronized void rejectDelayed(long deliveryTag) {
+        if (this.delayedRejects.remove(deliveryTag)) this.rejected(deliveryTag);
+    }
+
+    /**
+     * Sends acknowledgements, if the oldest completed delivery waited longer than the maximum delay
+     */
+    public synchronized void flushIfDue() {
+        if (this.completedSinceFlush > 0 && System.nanoTime() - this.firstCompletedAt >= this.maxDelayNanos) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Acknowledges all deliveries up to the oldest one, that is not completed yet. If that one is outstanding for
+     * longer than the maximum gap, the completed deliveries after it are acknowledged one by one.
+     */
+    public synchronized void flush() {
+        long ackUpTo = this.outstanding.isEmpty() ? this.highestReceived : this.outstanding.firstKey() - 1;
+        while (this.settled.contains(ackUpTo)) ackUpTo--;
+        try {
+            if (ackUpTo > this.lastAcked) {
+                this.channel.ack(ackUpTo, true);
+                logger.trace("Acknowledged deliveries up to {}", ackUpTo);
+                this.lastAcked = ackUpTo;
+                this.settled.headSet(ackUpTo, true).clear();
+                this.completed.headSet(ackUpTo, true).clear();
+            }
+            if (!this.completed.isEmpty() && !this.outstanding.isEmpty()
+                    && System.nanoTime() - this.outstanding.firstEntry().getValue() >= this.maxGapNanos) {
+                logger.debug(
+                        "Delivery {} is outstanding for too long, acknowledging {} later deliveries one by one",
+                        this.outstanding.firstKey(), this.completed.size()
+                );
+                while (!this.completed.isEmpty()) {
+                    long tag = this.completed.first();
+                    this.channel.ack(tag, false);
+                    this.completed.pollFirst();
+                    this.settled.add(tag);
+                }
+            }
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, logger, "warn", "%s occurred while acknowledging deliveries: %s");
+        }
+        if (this.completed.isEmpty()) this.completedSinceFlush = 0;
+    }
+
+    /**
+     * Gives back all deliveries waiting for their delayed rejection, sends all outstanding acknowledgements and stops
+     * the timer
+     */
+    public void close() {
+        this.timer.shutdownNow();
+        synchronized (this) {
+            while (!this.delayedRejects.isEmpty()) {
+                this.rejectDelayed(this.delayedRejects.first());
+            }
+            this.flush();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.hmdms.hmmanager.msg;
 
 import org.hmdms.hmmanager.msg.subscribers.ISubscriber;
+import org.hmdms.hmmanager.msg.subscribers.SubscriberListener;
 import org.hmdms.hmmanager.sys.HealthC;
 import org.hmdms.hmmanager.sys.PerformanceCheck;
 import org.hmdms.hmmanager.sys.StateC;
@@ -8,35 +9,104 @@ import org.hmdms.hmmanager.sys.BlockingComponent;
 import org.hmdms.hmmanager.utils.LoggingUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class manages all messages given to the system and gives them to their respective services, which in turn
  * subscribe to this class
  */
-public class Broker extends BlockingComponent {
+public class Broker extends BlockingComponent implements SubscriberListener {
     /**
-     * All messages, sorted by topic
+     * Default maximum number of messages, that may wait in the queues of a broker
      */
-    private final HashMap<TopicC, LinkedList<MessageInfo>> mq;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    /**
+     * Default time in seconds a message may wait in the queues, before it is cleaned up
+     */
+    public static final int DEFAULT_MESSAGE_TIMEOUT = 10;
+    /**
+     * All messages that were not yet given to a subscriber, sorted by topic. Each topic has its own lock-free
+     * priority lanes, so producers and the coordinator never block each other when adding or collecting messages.
+     */
+    private final EnumMap<TopicC, PriorityLanes> mq;
+    /**
+     * Maximum number of messages, that may wait in the queues of all topics together
+     */
+    private final int queueCapacity;
+    /**
+     * Number of messages currently waiting in the queues of all topics. Is kept separately, as the size of the
+     * queues themselves can not be determined in constant time.
+     */
+    private final AtomicInteger queued;
+    /**
+     * Number of messages currently waiting in the queue of each topic
+     */
+    private final EnumMap<TopicC, AtomicInteger> depths;
+    /**
+     * Maximum number of messages, that may wait in the queue of each topic. A topic whose queue is full is rejected,
+     * while messages of other topics are still accepted.
+     */
+    private final EnumMap<TopicC, Integer> topicCapacities;
+    /**
+     * Deadlines of all queued messages, so expired messages are found without scanning the queues
+     */
+    private final DeadlineWheel deadlines;
+    /**
+     * Time in nanoseconds a message may wait in the queues, before it is cleaned up
+     */
+    private volatile long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_MESSAGE_TIMEOUT);
+    /**
+     * All messages that were given to a subscriber and have not been completed yet, keyed by their id
+     */
+    private final ConcurrentHashMap<Long, MessageInfo> inFlight;
     /**
      * All subscribers that subscribe to this broker
      */
-    private final HashMap<TopicC, ArrayList<ISubscriber>> subscribers;
+    private final EnumMap<TopicC, CopyOnWriteArrayList<ISubscriber>> subscribers;
 
     /**
      * Threads of all subscribers to this broker
      */
     private final LinkedList<Thread> subThreads;
-
+    /**
+     * Listener that is told, when queued messages need to be dispatched
+     */
+    private volatile BrokerListener listener;
 
     /**
      * Default constructor
      * @throws IllegalArgumentException Exception thrown by super constructor
      */
     public Broker () throws IllegalArgumentException {
-        super(new String[]{"mq", "sub", "thread"});
-        this.mq = new HashMap<>();
-        this.subscribers = new HashMap<>();
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a broker, whose queues hold at most {@param queueCapacity} messages
+     * @param queueCapacity Maximum number of messages waiting for a subscriber
+     * @throws IllegalArgumentException When the capacity is smaller than 1 or by super constructor
+     */
+    public Broker (int queueCapacity) throws IllegalArgumentException {
+        super(new String[]{"thread"});
+        if (queueCapacity < 1) throw new IllegalArgumentException("Queue capacity must be at least 1");
+        this.queueCapacity = queueCapacity;
+        this.queued = new AtomicInteger(0);
+        this.depths = new EnumMap<>(TopicC.class);
+        this.topicCapacities = new EnumMap<>(TopicC.class);
+        this.deadlines = new DeadlineWheel();
+        this.mq = new EnumMap<>(TopicC.class);
+        this.inFlight = new ConcurrentHashMap<>();
+        this.subscribers = new EnumMap<>(TopicC.class);
+        // Queues and subscriber lists are created up front, so the maps themselves are never modified afterwards
+        for (TopicC topic : TopicC.values()) {
+            this.mq.put(topic, new PriorityLanes());
+            this.depths.put(topic, new AtomicInteger(0));
+            this.topicCapacities.put(topic, queueCapacity);
+            this.subscribers.put(topic, new CopyOnWriteArrayList<>());
+        }
         this.setState(StateC.STARTED);
         this.subThreads = new LinkedList<>();
         this.logger.debug("Broker instantiated");
@@ -46,7 +116,8 @@ public class Broker extends BlockingComponent {
      * Adds message {@param mi} to the queue for the given topic {@param topic}
      * @param topic Topic to which the message should be added
      * @param mi Message to be added
-     * @return True, if message could be added
+     * @return True, if message could be added, false if no subscriber took it and the queue of the topic or the
+     * queues of the broker are full
      */
     public boolean addMessage(TopicC topic, MessageInfo mi) {
         // Check if topic and Message Info have been given
@@ -67,22 +138,22 @@ public class Broker extends BlockingComponent {
             );
         }
 
-        // Notifying a single subscriber did not work, add message to message queue
+        // Notifying a single subscriber did not work, add message to message queue, if there is room left
+        if (!this.reserveQueueSlot(topic)) {
+            this.logger.debug("Queue of topic {} is full, cannot add message {}", topic, mi.getId());
+            this.signalDispatch();
+            return false;
+        }
         try {
-            if (!this.tryToAcquireLock("mq")) return false;
-            this.logger.debug("Adding message " + mi + " to message queue");
-
-            // If the topic currently does not exist in the hashmap, add it
-            if (this.mq.get(topic) == null || this.mq.get(topic).isEmpty()) {
-                this.logger.debug("Topic " + topic + " currently not existent in queue, adding it");
-                this.mq.put(topic, new LinkedList<>());
-            }
-
-            // Add message to the list in the message queue
-            this.mq.get(topic).add(mi);
-            this.logger.debug("MessageInfo object " + mi + " added to queue for topic " + topic);
+            this.logger.debug("Adding message {} to message queue", mi.getId());
+            this.scheduleDeadline(topic, mi);
+            this.mq.get(topic).offer(mi);
+            this.logger.debug("Message {} added to queue for topic {}", mi.getId(), topic);
+            this.signalDispatch();
             return true;
         } catch (Exception ex) {
+            this.queued.decrementAndGet();
+            this.depths.get(topic).decrementAndGet();
             LoggingUtils.logException(
                     ex,
                     this.logger,
@@ -90,8 +161,6 @@ public class Broker extends BlockingComponent {
                     "%s occurred when trying to add message to message queue: %s"
             );
             return false;
-        } finally {
-            this.unlock("mq");
         }
     }
 
@@ -104,14 +173,17 @@ public class Broker extends BlockingComponent {
      */
     private boolean notifySingle(TopicC topic, MessageInfo mi) {
         if (topic == null || mi == null) throw new IllegalArgumentException("No topic or message given");
-        if (!this.tryToAcquireLock("sub")) return false;
 
-        if (this.subscribers.get(topic) == null || this.subscribers.get(topic).isEmpty()) {
-            this.logger.warn("No subscriber for topic " + topic + " exists");
-            this.unlock("sub");
+        if (this.subscribers.get(topic).isEmpty()) {
+            this.logger.warn("No subscriber for topic {} exists", topic);
             throw new IllegalArgumentException("No subscribers for topic");
         }
 
+        // Register the message as in flight before handing it over, as the subscriber may complete it right away
+        mi.markCollected();
+        mi.setCollectedNanos(System.nanoTime());
+        this.inFlight.put(mi.getId(), mi);
+
         boolean transferred = false;
         // Iterate through all subscribers
         for (ISubscriber sub : this.subscribers.get(topic)) {
@@ -133,64 +205,79 @@ public class Broker extends BlockingComponent {
                 );
             }
         }
-        this.unlock("sub");
+
+        if (!transferred) {
+            this.inFlight.remove(mi.getId());
+            mi.setCollectedNanos(0);
+            mi.setCollected(false);
+        }
         return transferred;
     }
 
     /**
-     * Method to notify all subscribers of all topics to get any not yet collected messages out
+     * Method to notify all subscribers of all topics to get any not yet collected messages out.
+     * Every subscriber is given as many queued messages as it has room for. Handed over messages are moved from the
+     * queue into the in-flight table, where they stay until the subscriber completes them.
      * @return True, if subscribers could be notified
      */
     public boolean notifyAllSubscribers() {
-        if (!this.tryToAcquireLock("mq")) return false;
-        if (!this.tryToAcquireLock("sub")) {
-            this.unlock("mq");
-            return false;
-        }
         try {
-            Set<TopicC> keySet = this.mq.keySet();
-            for (TopicC topic : keySet) {
-                ArrayList<MessageInfo> mis = new ArrayList<>();
-                boolean transferred = false;
-
-                if (this.mq.get(topic) == null || this.mq.get(topic).isEmpty()) {
+            for (TopicC topic : this.mq.keySet()) {
+                PriorityLanes queue = this.mq.get(topic);
+                AtomicInteger depth = this.depths.get(topic);
+                if (queue.isEmpty()) {
                     continue;
                 }
-                if (this.subscribers.get(topic) == null || this.subscribers.get(topic).isEmpty()) {
-                    this.logger.warn("No subscriber for topic " + topic + " exists");
+                if (this.subscribers.get(topic).isEmpty()) {
+                    this.logger.warn("No subscriber for topic {} exists", topic);
                     // TODO request new sub for topic
                     continue;
                 }
+
                 for (ISubscriber sub : this.subscribers.get(topic)) {
-                    // If subscriber subscribes to given topic, give them messages concerning the topic
+                    if (queue.isEmpty()) break;
+                    int room = sub.remainingCapacity();
+                    if (room <= 0) continue;
+
+                    // Take messages by priority and age. Claiming them makes sure a message that is being cleaned up
+                    // concurrently is not given to a subscriber
+                    ArrayList<MessageInfo> claimed = new ArrayList<>();
+                    long collectedNanos = System.nanoTime();
+                    MessageInfo m;
+                    while (claimed.size() < room && (m = queue.poll()) != null) {
+                        // Messages claimed by the cleanup are counted down there
+                        if (!m.markCollected()) continue;
+                        this.queued.decrementAndGet();
+                        depth.decrementAndGet();
+                        m.setCollectedNanos(collectedNanos);
+                        this.inFlight.put(m.getId(), m);
+                        claimed.add(m);
+                    }
+                    if (claimed.isEmpty()) break;
+
+                    boolean transferred = false;
                     try {
-                        // Get all collected messages and give them to the subscriber
-                        LinkedList<MessageInfo> uncollected = this.mq.get(topic);
-                        for (MessageInfo next : uncollected) {
-                            if (!next.isCollected()) mis.add(next);
-                        }
-                        transferred = sub.notify(mis);
+                        transferred = sub.notify(claimed);
                         this.logger.trace("Notified subscribers of new message");
                     } catch (Exception ex) {
-                        this.logger.debug("Exception occurred while giving subscribers messages: " + ex.getMessage());
-                        StringBuilder stack = new StringBuilder();
-                        for (var stel : ex.getStackTrace()) {
-                            stack.append(stel.toString());
-                            stack.append("\t\n");
-                        }
-                        this.logger.debug(stack.toString());
+                        LoggingUtils.logException(
+                                ex,
+                                this.logger,
+                                "debug",
+                                "%s occurred while giving subscribers messages: %s"
+                        );
                     }
-                }
-
 
-                // Mark all transferred messages as collected
-                if (transferred) {
-                    for (var m : mis) {
-                        for (int i = 0; i < this.mq.get(topic).size(); i++) {
-                            if (m.getUuid().equals(this.mq.get(topic).get(i).getUuid())) {
-                                this.mq.get(topic).get(i).setCollected(true);
-                                this.mq.get(topic).get(i).setCollectionDate(new Date());
-                            }
+                    if (!transferred) {
+                        // Subscriber did not take the messages, put them back to the head of their lanes in order
+                        for (int i = claimed.size() - 1; i >= 0; i--) {
+                            MessageInfo back = claimed.get(i);
+                            this.inFlight.remove(back.getId());
+                            back.setCollectedNanos(0);
+                            back.setCollected(false);
+                            this.queued.incrementAndGet();
+                            depth.incrementAndGet();
+                            queue.offerFirst(back);
                         }
                     }
                 }
@@ -199,92 +286,338 @@ public class Broker extends BlockingComponent {
         } catch (Exception ex) {
             LoggingUtils.logException(ex, this.logger, "info", "%s occurred while notifying subscribers: %s");
             return false;
-        } finally {
-            this.unlock("mq");
-            this.unlock("sub");
         }
 
     }
+
+    /**
+     * Removes the message with id {@param id} from the in-flight table
+     * @param id Id of the message that was completed
+     * @return True, if the message was in flight
+     */
+    public boolean acknowledge(long id) {
+        return this.inFlight.remove(id) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Acknowledges the message, so it is removed from the in-flight table, and informs the listener.
+     * @param subscriber Subscriber that worked on the message
+     * @param mi Message that was completed
+     */
+    @Override
+    public void messageCompleted(ISubscriber subscriber, MessageInfo mi) {
+        if (!this.acknowledge(mi.getId())) {
+            this.logger.debug("Completed message {} was not in flight", mi.getId());
+        }
+        BrokerListener l = this.listener;
+        if (l != null) l.messageCompleted(this, mi);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Removes the message from the in-flight table and informs the listener, so it can answer the message.
+     * @param subscriber Subscriber the message was given to
+     * @param mi Message that expired
+     */
+    @Override
+    public void messageExpired(ISubscriber subscriber, MessageInfo mi) {
+        this.acknowledge(mi.getId());
+        BrokerListener l = this.listener;
+        if (l != null) l.messageExpired(this, mi);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Requests a dispatch, so the subscriber is given messages queued in this broker or taken from a busier one.
+     * @param subscriber Subscriber with free capacity
+     */
+    @Override
+    public void capacityAvailable(ISubscriber subscriber) {
+        this.signalDispatch();
+    }
+
+    /**
+     * Returns the number of messages that were given to subscribers and have not been completed yet
+     * @return Number of messages in flight
+     */
+    public int getInFlightCount() {
+        return this.inFlight.size();
+    }
+
+    /**
+     * Checks, whether there are any messages in the queues of this broker
+     * @return True, if at least one topic has queued messages
+     */
+    public boolean hasQueuedMessages() {
+        return this.queued.get() > 0;
+    }
+
+    /**
+     * Returns the number of messages waiting for a subscriber
+     * @return Number of queued messages of all topics
+     */
+    public int getQueuedCount() {
+        return this.queued.get();
+    }
+
+    /**
+     * Returns the number of messages of topic {@param topic} waiting for a subscriber
+     * @param topic Topic of the messages
+     * @return Number of queued messages of the topic
+     */
+    public int getQueuedCount(TopicC topic) {
+        return this.depths.get(topic).get();
+    }
+
+    /**
+     * Returns the number of messages of topic {@param topic} and priority {@param priority} waiting for a subscriber
+     * @param topic Topic of the messages
+     * @param priority Priority of the messages
+     * @return Number of queued messages of the topic in the lane of the priority
+     */
+    public int getQueuedCount(TopicC topic, PriorityC priority) {
+        return this.mq.get(topic).size(priority);
+    }
+
+    /**
+     * Returns the load of this broker, used for choosing a broker for new messages
+     * @return Number of messages queued or in flight
+     */
+    public int getLoad() {
+        return this.queued.get() + this.inFlight.size();
+    }
+
+    /**
+     * Returns the number of messages all subscribers of topic {@param topic} could take right now
+     * @param topic Topic of the subscribers
+     * @return Free capacity of all subscribers of the topic
+     */
+    public int getFreeSubscriberCapacity(TopicC topic) {
+        int room = 0;
+        for (ISubscriber sub : this.subscribers.get(topic)) {
+            room += Math.max(0, sub.remainingCapacity());
+        }
+        return room;
+    }
+
+    /**
+     * Takes up to {@param max} queued messages of topic {@param topic} from the tail of the queue, so another broker
+     * can work on them. The newest messages of the lowest priority are taken, so the oldest and most important ones
+     * stay in line here.
+     * Must be called by the same thread as {@link Broker#cleanup()}, as the cleanup may still hold messages that
+     * are moved to another broker.
+     * @param topic Topic of the messages
+     * @param max Maximum number of messages to take
+     * @return All messages taken from this broker
+     */
+    public ArrayList<MessageInfo> steal(TopicC topic, int max) {
+        ArrayList<MessageInfo> stolen = new ArrayList<>();
+        PriorityLanes queue = this.mq.get(topic);
+        MessageInfo m;
+        while (stolen.size() < max && (m = queue.pollLast()) != null) {
+            // Claiming the message makes sure it is not being cleaned up at the same time
+            if (!m.markCollected()) continue;
+            m.setCollected(false);
+            this.queued.decrementAndGet();
+            this.depths.get(topic).decrementAndGet();
+            stolen.add(m);
+        }
+        return stolen;
+    }
+
+    /**
+     * Queues messages taken from another broker with {@link Broker#steal(TopicC, int)}. The messages are queued
+     * regardless of the capacity of this broker, as they were already accounted for by the other broker.
+     * @param topic Topic of the messages
+     * @param messages Messages to be queued
+     */
+    public void adopt(TopicC topic, ArrayList<MessageInfo> messages) {
+        if (topic == null || messages == null) throw new IllegalArgumentException("No topic or messages given");
+        PriorityLanes queue = this.mq.get(topic);
+        for (MessageInfo m : messages) {
+            this.scheduleDeadline(topic, m);
+            this.queued.incrementAndGet();
+            this.depths.get(topic).incrementAndGet();
+            queue.offer(m);
+        }
+    }
+
+    /**
+     * Returns the maximum number of messages, that may wait for a subscriber
+     * @return Capacity of the queues of all topics together
+     */
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    /**
+     * Returns the maximum number of messages of topic {@param topic}, that may wait for a subscriber
+     * @param topic Topic of the messages
+     * @return Capacity of the queue of the topic
+     */
+    public int getQueueCapacity(TopicC topic) {
+        return this.topicCapacities.get(topic);
+    }
+
+    /**
+     * Limits the number of queued messages of topic {@param topic}. Must be called before the broker receives its
+     * first message.
+     * @param topic Topic of the messages
+     * @param capacity Maximum number of queued messages of the topic, is capped at the capacity of the broker
+     * @throws IllegalArgumentException When no topic or a capacity smaller than 1 is given
+     */
+    public void setQueueCapacity(TopicC topic, int capacity) throws IllegalArgumentException {
+        if (topic == null) throw new IllegalArgumentException("No topic given");
+        if (capacity < 1) throw new IllegalArgumentException("Queue capacity must be at least 1");
+        this.topicCapacities.put(topic, Math.min(capacity, this.queueCapacity));
+    }
+
+    /**
+     * Sets the waiting time a single level of priority is worth in the queues of all topics. A queued message
+     * overtakes messages one priority above it after waiting {@param agingNanos} longer.
+     * @param agingNanos Waiting time in nanoseconds, 0 or less to take messages strictly by priority
+     */
+    public void setPriorityAging(long agingNanos) {
+        for (PriorityLanes lanes : this.mq.values()) {
+            lanes.setAgingNanos(agingNanos);
+        }
+    }
+
+    /**
+     * Returns the number of messages, that can still be queued before this broker rejects messages
+     * @return Free capacity of the queues
+     */
+    public int getCredit() {
+        return Math.max(0, this.queueCapacity - this.queued.get());
+    }
+
+    /**
+     * Returns the number of messages of topic {@param topic}, that can still be queued before this broker rejects
+     * messages of the topic
+     * @param topic Topic of the messages
+     * @return Free capacity of the queue of the topic
+     */
+    public int getCredit(TopicC topic) {
+        return Math.max(0, Math.min(
+                this.topicCapacities.get(topic) - this.depths.get(topic).get(),
+                this.getCredit()
+        ));
+    }
+
+    /**
+     * Reserves room for a single message of topic {@param topic}, both in the queue of the topic and in the queues
+     * of the broker
+     * @param topic Topic of the message
+     * @return True, if neither the queue of the topic nor the queues of the broker were full
+     */
+    private boolean reserveQueueSlot(TopicC topic) {
+        AtomicInteger depth = this.depths.get(topic);
+        int limit = this.topicCapacities.get(topic);
+        int current;
+        do {
+            current = depth.get();
+            if (current >= limit) return false;
+        } while (!depth.compareAndSet(current, current + 1));
+
+        do {
+            current = this.queued.get();
+            if (current >= this.queueCapacity) {
+                depth.decrementAndGet();
+                return false;
+            }
+        } while (!this.queued.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Sets the listener that is told, whenever queued messages need to be dispatched
+     * @param listener Listener, usually the {@link Coordinator}
+     */
+    public void setListener(BrokerListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Tells {@link Broker#listener}, that queued messages need to be dispatched
+     */
+    private void signalDispatch() {
+        BrokerListener l = this.listener;
+        if (l != null) l.dispatchNeeded(this);
+    }
+
     /**
      * Adds a subscriber that subscribes to this broker
      * @param s subscriber object
      * @return True, if subscriber could be added
      */
     public boolean addSubscriber(ISubscriber s) {
-        if (!this.tryToAcquireLock("sub")) {
-            this.logger.info("Could not lock subscribers object and therefore cannot add subscriber " + s.toString() + ", returning");
-            this.unlock("sub");
-            return false;
-        }
-        this.subscribers.computeIfAbsent(s.getTopic(), k -> new ArrayList<ISubscriber>());
-        this.subscribers.get(s.getTopic()).add(s);
-        this.logger.debug("Added subscriber " + s.toString());
-
         if (!this.tryToAcquireLock("thread")) {
-            this.logger.info("Could not lock threads object and therefore cannot add subscriber " + s.toString() + ", returning");
+            this.logger.info("Could not lock threads object and therefore cannot add subscriber {}, returning", s);
             this.unlock("thread");
-            this.subscribers.remove(s);
-            this.unlock("sub");
             return false;
         }
+        this.subscribers.get(s.getTopic()).add(s);
+        s.setListener(this);
+        this.logger.debug("Added subscriber {}", s);
+
         this.subThreads.add(new Thread(s));
         this.subThreads.getLast().start();
-        this.logger.debug("Successfully added subscriber " + s + " and started their thread");
-        this.unlock("sub");
+        this.logger.debug("Successfully added subscriber {} and started their thread", s);
         this.unlock("thread");
         return true;
     }
 
     /**
-     * Cleans all messages that are older than {@param timeoutSeconds} seconds.
-     * @param timeoutSeconds Time in seconds after which messages are to be removed from the message queue
+     * Cleans all queued messages whose deadline passed. A message must be given to a subscriber within the message
+     * timeout of the broker or before its own deadline, whichever comes first. Messages given to subscribers are not
+     * affected, they leave the in-flight table as soon as they are completed.
+     * Only the messages that expired are visited, the queues are not scanned. Expired messages are claimed and
+     * unlinked from their queue right away, so the coordinator may recycle them as soon as they are answered.
      * @return All cleaned messages, because the coordinator still has to answer them
      */
-    public ArrayList<MessageInfo> cleanup(int timeoutSeconds) {
+    public ArrayList<MessageInfo> cleanup() {
         try {
-            if (!this.tryToAcquireLock("mq")) return null;
             ArrayList<MessageInfo> cleaned = new ArrayList<>();
-            // Iterate through all topics
-            for (TopicC t : this.mq.keySet()) {
-                ArrayList<MessageInfo> tCleaned = new ArrayList<>();
-                ArrayList<MessageInfo> aCleaned = new ArrayList<>();
-                LinkedList<MessageInfo> currentQueue = this.mq.get(t);
-                // Iterate through all messages in that topic
-                for (MessageInfo m : currentQueue) {
-                    // If message was already collected, check the collection date
-                    if (m.isCollected()) {
-                        /* TODO think about how to monitor which messages, have been collected, were not answered yet
-                            and what to do with those
-                         */
-                        aCleaned.add(m);
-                    } else if (((int) (new Date().getTime() - m.getReceived().getTime()) / 1000) > timeoutSeconds) {
-                        // If the message has not been collected, check the received time instead
-                        this.logger.info("Message " + m + " is being cleaned up as it has not finished after timeout");
-                        tCleaned.add(m);
-                    }
-                }
-                this.mq.get(t).removeAll(tCleaned);
-                cleaned.addAll(tCleaned);
-                this.mq.get(t).removeAll(aCleaned);
-            }
+            this.deadlines.expire(System.nanoTime(), (topic, m) -> {
+                this.logger.info("Message {} is being cleaned up as it has not finished after timeout", m.getId());
+                this.queued.decrementAndGet();
+                this.depths.get(topic).decrementAndGet();
+                this.mq.get(topic).remove(m);
+                cleaned.add(m);
+            });
 
             // Return all cleaned messages to the coordinator, so it can answer
             return cleaned;
         } catch (Exception ex) {
-            this.logger.info("Could notify subscribers due to exception: " + ex.getMessage());
-            StringBuilder sb = new StringBuilder();
-            for (var stel : ex.getStackTrace()) {
-                sb.append(stel.toString());
-                sb.append("\n");
-                sb.append("\t");
-            }
-            this.logger.debug(sb.toString());
+            LoggingUtils.logException(ex, this.logger, "info", "%s occurred while cleaning up message queue: %s");
             return null;
-        } finally {
-            this.unlock("mq");
         }
     }
 
+    /**
+     * Sets the time a message may wait in the queues, before it is cleaned up. Applies to messages queued afterwards
+     * @param timeoutNanos Time in nanoseconds
+     * @throws IllegalArgumentException When the timeout is smaller than 1
+     */
+    public void setMessageTimeout(long timeoutNanos) throws IllegalArgumentException {
+        if (timeoutNanos < 1) throw new IllegalArgumentException("Message timeout must be at least 1");
+        this.messageTimeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Schedules the cleanup of {@param mi}, that is queued in topic {@param topic}, at the message timeout of the
+     * broker or at the deadline of the message, whichever comes first
+     * @param topic Topic the message is queued in
+     * @param mi Queued message
+     */
+    private void scheduleDeadline(TopicC topic, MessageInfo mi) {
+        mi.nextQueueGeneration();
+        long deadline = mi.getReceivedNanos() + this.messageTimeoutNanos;
+        if (mi.getDeadlineNanos() != 0 && mi.getDeadlineNanos() - deadline < 0) deadline = mi.getDeadlineNanos();
+        this.deadlines.schedule(topic, mi, deadline);
+    }
+
     /**
      * Sets stopped status on all subscribers and then waits for their thread to end.
      * If the thread does not end within 200ms, the thread will be interrupted
@@ -301,15 +634,15 @@ public class Broker extends BlockingComponent {
         for (Thread t : this.subThreads) {
             try {
                 // Try to join the thread. If the thread doesn't conclude within 200ms, interrupt it
-                this.logger.debug("Waiting for thread " + t + " to end");
+                this.logger.debug("Waiting for thread {} to end", t);
                 t.join(200);
                 if (t.isAlive()) {
-                    this.logger.debug("Thread " +  t + " still alive, setting interrupt");
+                    this.logger.debug("Thread {} still alive, setting interrupt", t);
                     t.interrupt();
                 }
             } catch (InterruptedException ex) {
                 LoggingUtils.logException(ex, this.logger, "warn", "%s while joining Thread " + t + ": %s");
-                this.logger.debug("Setting interrupt on thread " + t + " to make sure it is dead");
+                this.logger.debug("Setting interrupt on thread {} to make sure it is dead", t);
                 t.interrupt();
             }
         }
@@ -0,0 +1,28 @@
+package org.hmdms.hmmanager.msg;
+
+/**
+ * Listener that is informed by a {@link Broker} about events the {@link Coordinator} has to react to
+ */
+public interface BrokerListener {
+    /**
+     * Called, when {@param broker} has queued messages that could not be handed to a subscriber directly, or when
+     * one of its subscribers is able to take on queued messages again
+     * @param broker Broker that needs its queued messages dispatched
+     */
+    void dispatchNeeded(Broker broker);
+
+    /**
+     * Called, when a subscriber of {@param broker} finished working on {@param mi}
+     * @param broker Broker the message was given to
+     * @param mi Message that was completed
+     */
+    void messageCompleted(Broker broker, MessageInfo mi);
+
+    /**
+     * Called, when a subscriber of {@param broker} rejected {@param mi} without working on it, because its deadline
+     * passed
+     * @param broker Broker the message was given to
+     * @param mi Message that expired
+     */
+    void messageExpired(Broker broker, MessageInfo mi);
+}
@@ -0,0 +1,251 @@
+package org.hmdms.hmmanager.msg;
+
+import org.hmdms.hmmanager.msg.transport.DeliveryHandler;
+import org.hmdms.hmmanager.msg.transport.InboundChannel;
+import org.hmdms.hmmanager.msg.transport.Transport;
+import org.hmdms.hmmanager.utils.LoggingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One of the channels the {@link Coordinator} consumes its queue with. Every consumer channel has its own inbound
+ * channel of the transport and its own executor, on which all of its deliveries are handled one after another, so
+ * deliveries of different consumer channels are parsed and routed in parallel. Delivery tags are only valid on the
+ * channel they were received on, so every consumer channel acknowledges its deliveries with its own
+ * {@link AckBatcher}.
+ */
+public class ConsumerChannel {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerChannel.class);
+    /**
+     * Index of the consumer channel in the coordinator
+     */
+    private final int index;
+    /**
+     * Executor running the delivery callback of the channel
+     */
+    private final ExecutorService executor;
+    /**
+     * Channel the deliveries are received on
+     */
+    private volatile InboundChannel channel;
+    /**
+     * Acknowledges the deliveries of the channel in batches
+     */
+    private volatile AckBatcher ackBatcher;
+    /**
+     * Tag of the active consumer, null while consuming is paused
+     */
+    private volatile String consumerTag;
+    /**
+     * Number of deliveries received on the channel
+     */
+    private final LongAdder received = new LongAdder();
+    /**
+     * Number of deliveries handed to a broker or answered without one
+     */
+    private final LongAdder placed = new LongAdder();
+    /**
+     * Number of deliveries given back to the message queue, because no broker had room for them
+     */
+    private final LongAdder rejected = new LongAdder();
+    /**
+     * Number of deliveries that could not be read
+     */
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates a new consumer channel. No channel is opened until {@link ConsumerChannel#open} is called.
+     * @param index Index of the consumer channel in the coordinator
+     */
+    public ConsumerChannel(int index) {
+        this.index = index;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "consumer-" + index);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Opens the inbound channel for {@param queueName}
+     * @param transport Transport the queue is consumed with
+     * @param queueName Name of the queue that is consumed
+     * @param prefetch Maximum number of unacknowledged deliveries on the channel
+     * @param ackBatchSize Number of completed deliveries after which acknowledgements are sent
+     * @param ackMaxDelay Maximum time in milliseconds a completed delivery waits for its acknowledgement
+     * @param ackMaxGap Maximum time in milliseconds the oldest delivery may be outstanding, before later deliveries
+     * are acknowledged one by one
+     * @throws IOException When the channel could not be opened
+     */
+    public void open(
+            Transport transport, String queueName, int prefetch, int ackBatchSize, long ackMaxDelay, long ackMaxGap
+    ) throws IOException {
+        InboundChannel channel = transport.openInbound(
+                queueName, prefetch, this.executor, "hmmanager-consumer-" + this.index
+        );
+        this.ackBatcher = new AckBatcher(channel, ackBatchSize, ackMaxDelay, ackMaxGap);
+        this.channel = channel;
+    }
+
+    /**
+     * Starts consuming, if the channel is open and not consuming already
+     * @param handler Handler of the deliveries
+     * @throws IOException When the consumer could not be registered
+     */
+    public void consume(DeliveryHandler handler) throws IOException {
+        InboundChannel channel = this.channel;
+        if (channel == null || this.consumerTag != null) return;
+        this.consumerTag = channel.consume(handler);
+    }
+
+    /**
+     * Stops consuming. Deliveries already received are still handled and acknowledged.
+     * @throws IOException When the consumer could not be cancelled
+     */
+    public void cancel() throws IOException {
+        String tag = this.consumerTag;
+        InboundChannel channel = this.channel;
+        this.consumerTag = null;
+        if (tag != null && channel != null) channel.cancel(tag);
+    }
+
+    /**
+     * Registers a new delivery, that must not be acknowledged before it is completed
+     * @param deliveryTag Delivery tag of the new delivery
+     */
+    public void received(long deliveryTag) {
+        this.received.increment();
+        AckBatcher batcher = this.ackBatcher;
+        if (batcher != null) batcher.received(deliveryTag);
+    }
+
+    /**
+     * Counts a delivery, that was handed to a broker or answered without one
+     */
+    public void placed() {
+        this.placed.increment();
+    }
+
+    /**
+     * Marks the delivery with tag {@param deliveryTag} as completed, so it is acknowledged with the next batch
+     * @param deliveryTag Delivery tag on this channel
+     */
+    public void completed(long deliveryTag) {
+        AckBatcher batcher = this.ackBatcher;
+        if (batcher != null) batcher.completed(deliveryTag);
+    }
+
+    /**
+     * Gives the delivery with tag {@param deliveryTag} back to the message queue
+     * @param deliveryTag Delivery tag on this channel
+     */
+    public void rejected(long deliveryTag) {
+        this.rejected(deliveryTag, 0);
+    }
+
+    /**
+     * Gives the delivery with tag {@param deliveryTag} back to the message queue after {@param delayMillis}, so it is
+     * not redelivered right away
+     * @param deliveryTag Delivery tag on this channel
+     * @param delayMillis Time in milliseconds after which the delivery is given back, 0 or less to give it back now
+     */
+    public void rejected(long deliveryTag, long delayMillis) {
+        this.rejected.increment();
+        AckBatcher batcher = this.ackBatcher;
+        if (batcher != null) batcher.rejected(deliveryTag, delayMillis);
+    }
+
+    /**
+     * Completes the delivery with tag {@param deliveryTag}, that could not be read
+     * @param deliveryTag Delivery tag on this channel
+     */
+    public void failed(long deliveryTag) {
+        this.failed.increment();
+        this.completed(deliveryTag);
+    }
+
+    /**
+     * Returns the index of the consumer channel in the coordinator
+     * @return Index of the consumer channel
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Checks, whether the channel currently receives deliveries
+     * @return True, if a consumer is registered on the channel
+     */
+    public boolean isConsuming() {
+        return this.consumerTag != null;
+    }
+
+    /**
+     * Returns the number of deliveries received on the channel
+     * @return Number of received deliveries
+     */
+    public long getReceivedCount() {
+        return this.received.sum();
+    }
+
+    /**
+     * Returns the number of deliveries handed to a broker or answered without one
+     * @return Number of placed deliveries
+     */
+    public long getPlacedCount() {
+        return this.placed.sum();
+    }
+
+    /**
+     * Returns the number of deliveries given back to the message queue
+     * @return Number of rejected deliveries
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Returns the number of deliveries that could not be read
+     * @return Number of failed deliveries
+     */
+    public long getFailedCount() {
+        return this.failed.sum();
+    }
+
+    /**
+     * Sends all outstanding acknowledgements, closes the channel and stops the executor
+     */
+    public void close() {
+        try {
+            AckBatcher batcher = this.ackBatcher;
+            if (batcher != null) batcher.close();
+            InboundChannel channel = this.channel;
+            this.channel = null;
+            if (channel != null) channel.close();
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, logger, "debug", "%s occurred while closing consumer channel: %s");
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Builds String representation of the consumer channel and returns it
+     * @return String representation of the consumer channel
+     */
+    @Override
+    public String toString() {
+        return String.format(
+                "consumer-%d[received=%d, placed=%d, rejected=%d, failed=%d]",
+                this.index, this.getReceivedCount(), this.getPlacedCount(), this.getRejectedCount(),
+                this.getFailedCount()
+        );
+    }
+}
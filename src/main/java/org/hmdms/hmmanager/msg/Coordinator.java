@@ -1,11 +1,12 @@
 package org.hmdms.hmmanager.msg;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.rabbitmq.client.*;
+import com.rabbitmq.client.BasicProperties;
 import org.hmdms.hmmanager.msg.subscribers.Subscriber;
-import org.hmdms.hmmanager.sys.HealthC;
+import org.hmdms.hmmanager.msg.transport.InMemoryTransport;
+import org.hmdms.hmmanager.msg.transport.RabbitTransport;
+import org.hmdms.hmmanager.msg.transport.Transport;
+import org.hmdms.hmmanager.sys.LatencyRecorder;
 import org.hmdms.hmmanager.sys.StateC;
 import org.hmdms.hmmanager.sys.BlockingComponent;
 import org.hmdms.hmmanager.utils.ClassFinder;
@@ -13,32 +14,85 @@ import org.hmdms.hmmanager.utils.LoggingUtils;
 
 import java.io.*;
 import java.lang.reflect.Constructor;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Entry point for messages into the system. Receives messages from other components, distributes them among
  * {@link Broker} objects and coordinates answering the messages when the job is finished
  */
-public class Coordinator extends BlockingComponent implements Runnable {
+public class Coordinator extends BlockingComponent implements Runnable, BrokerListener {
+    /**
+     * Interval in which queued messages are checked for timeouts, as long as there are queued messages. Matches the
+     * tick of the deadline wheels of the brokers, as no message can expire in between
+     */
+    private static final long CLEANUP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(DeadlineWheel.DEFAULT_TICK_MILLIS);
     /**
      * Current state of the coordinator
      */
-    private StateC state;
+    private volatile StateC state;
     /**
-     * List of all instantiated {@link Broker} objects
+     * List of all {@link Broker} objects that receive new messages. Is only modified by the dispatch loop, the
+     * consumer reads it concurrently.
      */
-    private final ArrayList<Broker> brokers;
+    private final CopyOnWriteArrayList<Broker> brokers;
     /**
-     * Index of the next broker to receive a message
+     * Brokers that were retired and do not receive new messages anymore. They are destroyed, as soon as all of their
+     * messages are completed.
      */
-    private int nextBroker;
+    private final ArrayList<Broker> drainingBrokers = new ArrayList<>();
     /**
-     * Number of broker objects
+     * Number of brokers to start with
      */
     private final int numOfBrokers;
+    /**
+     * Minimum number of brokers, when scaling automatically
+     */
+    private final int minBrokers;
+    /**
+     * Maximum number of brokers, when scaling automatically
+     */
+    private final int maxBrokers;
+    /**
+     * Interval in nanoseconds in which the load is checked for scaling the brokers
+     */
+    private final long scalingIntervalNanos;
+    /**
+     * Share of the queue capacity of all brokers, at or above which another broker is added
+     */
+    private final double scaleUpQueueFill;
+    /**
+     * 99th percentile latency in milliseconds, at or above which another broker is added
+     */
+    private final long scaleUpLatency;
+    /**
+     * Share of the queue capacity of all brokers, at or below which a broker may be retired
+     */
+    private final double scaleDownQueueFill;
+    /**
+     * 99th percentile latency in milliseconds, at or below which a broker may be retired
+     */
+    private final long scaleDownLatency;
+    /**
+     * Time in milliseconds from receiving a message until it was completed, for all recently completed messages
+     */
+    private final LatencyRecorder latencies = new LatencyRecorder(4096);
+    /**
+     * Constructors of all subscribers, that are instantiated for every broker
+     */
+    private final ArrayList<Constructor<?>> subPrototypes = new ArrayList<>();
     /**
      * Time in seconds before a message is dropped
      */
@@ -49,122 +103,447 @@ public class Coordinator extends BlockingComponent implements Runnable {
      */
     private final boolean brokerAutoScaling;
     /**
-     * Counter for number of messages, that could not be delivered to the brokers due to some problem.
+     * Counter for number of messages, that could not be placed in any broker and were given back to the message queue
      */
-    private int droppedMessages = 0;
+    private final LongAdder rejectedMessages = new LongAdder();
     /**
      * Name of the message queue which the coordinator subscribes to.
      * Name of the queue is defined in config.properties file in property mq.hmmanager.queue.name
      */
     private final String queueName;
     /**
-     * Host on which the rabbitmq service is active
+     * Transport requests are consumed and replies are published with
+     */
+    private final Transport transport;
+    /**
+     * Publisher the subscribers use to answer requests over long-lived channels
+     */
+    private final ReplyPublisher replyPublisher;
+    /**
+     * Collapses repeated requests by reply queue and correlation id, null if deduplication is disabled
+     */
+    private final RequestDeduplicator deduplicator;
+    /**
+     * Waiting time in nanoseconds, after which a message overtakes messages one priority above it
+     */
+    private final long priorityAgingNanos;
+    /**
+     * Subscribers, queue bound and threads reserved for each topic in every broker
+     */
+    private final EnumMap<TopicC, TopicConfig> topicConfigs;
+    /**
+     * Permits for messages worked on concurrently per topic, shared by the subscribers of all brokers. Only contains
+     * topics whose subscribers run their messages in virtual threads.
+     */
+    private final EnumMap<TopicC, Semaphore> virtualPermits;
+    /**
+     * True, if a broker signalled that queued messages have to be dispatched
+     */
+    private final AtomicBoolean dispatchPending = new AtomicBoolean(false);
+    /**
+     * Thread that runs the dispatch loop in {@link Coordinator#run()}. Parks while there is nothing to do.
+     */
+    private volatile Thread dispatcher;
+    /**
+     * Number of channels the queue is consumed with in parallel
+     */
+    private final int consumerCount;
+    /**
+     * Channels the queue is consumed with. Empty until the coordinator is run
+     */
+    private volatile ConsumerChannel[] consumers = new ConsumerChannel[0];
+    /**
+     * Maximum number of unacknowledged deliveries the message queue sends to a single consumer channel
      */
-    private final String mqHost;
+    private final int prefetch;
     /**
-     * Factory for creating connections to the rabbitmq service
+     * True, if deliveries should only be acknowledged after the subscriber answered them. Otherwise they are
+     * acknowledged as soon as they were handed to a broker.
      */
-    private final ConnectionFactory factory = new ConnectionFactory();
+    private final boolean ackAfterReply;
+    /**
+     * Number of completed deliveries after which acknowledgements are sent
+     */
+    private final int ackBatchSize;
+    /**
+     * Maximum time in milliseconds a completed delivery waits for its acknowledgement
+     */
+    private final long ackMaxDelay;
+    /**
+     * Maximum time in milliseconds the oldest delivery may wait for its reply, before later deliveries of its consumer
+     * channel are acknowledged one by one
+     */
+    private final long ackMaxGap;
+    /**
+     * Time in milliseconds a delivery, that found no room in the brokers, is held before it is given back to the
+     * message queue
+     */
+    private final long rejectDelay;
+    /**
+     * Maximum number of messages, that may wait in the queues of a single broker
+     */
+    private final int brokerQueueCapacity;
+    /**
+     * True, while the consumer is paused because the brokers have too little credit left
+     */
+    private volatile boolean consumerPaused = false;
+    /**
+     * Credit of every topic in all brokers, indexed by the ordinal of the topic, below which the consumer is paused,
+     * once all topics fell below it. Every consumer channel may still receive up to a full prefetch window of
+     * deliveries after the pause, which have to fit into the remaining credit.
+     */
+    private volatile int[] pauseCredits = new int[TopicC.values().length];
+    /**
+     * Credit of every topic in all brokers, indexed by the ordinal of the topic, at or above which a paused consumer
+     * is resumed, once any topic reached it
+     */
+    private volatile int[] resumeCredits = new int[TopicC.values().length];
 
     /**
      * Standard constructor for Coordinator. Looks up number of brokers to instantiate from config.properties file and instantiates them.
+     * The transport is chosen by the property mq.transport.
      * @throws IOException When config.properties file is not found
      */
     public Coordinator() throws IOException {
+        this(null);
+    }
+
+    /**
+     * Constructor for a coordinator, that consumes requests and publishes replies with {@param transport}, e.g. an
+     * {@link InMemoryTransport} shared with callers in the same process. All other configuration is read from the
+     * config.properties file.
+     * @param transport Transport to use, null to choose it by the property mq.transport
+     * @throws IOException When config.properties file is not found
+     */
+    public Coordinator(Transport transport) throws IOException {
+        this(transport, loadConfig());
+    }
+
+    /**
+     * Constructor for a coordinator, that is configured by {@param prop} instead of the config.properties file, e.g.
+     * to run it with smaller queues or without scaling
+     * @param transport Transport to use, null to choose it by the property mq.transport
+     * @param prop Configuration with the same keys as the config.properties file
+     * @throws IOException When the transport could not be created
+     */
+    public Coordinator(Transport transport, Properties prop) throws IOException {
         super(new String[]{"brokers"});
-        Properties prop = new Properties();
-        String propFileName = "config.properties";
-        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(propFileName);
-        prop.load(inputStream);
 
         // Get configuration from config.properties
-        this.numOfBrokers = Integer.parseInt(prop.getProperty("msg.scaling.brokers"));
         this.messageTimeout = Integer.parseInt(prop.getProperty("msg.timeout"));
         this.brokerAutoScaling = Boolean.parseBoolean(prop.getProperty("msg.scaling.brokers.autoScaling"));
+        int initialBrokers = Integer.parseInt(prop.getProperty("msg.scaling.brokers"));
+        this.minBrokers = Math.max(1, Integer.parseInt(
+                prop.getProperty("msg.scaling.brokers.min", String.valueOf(initialBrokers))
+        ));
+        this.maxBrokers = Math.max(this.minBrokers, Integer.parseInt(
+                prop.getProperty("msg.scaling.brokers.max", String.valueOf(initialBrokers))
+        ));
+        this.numOfBrokers = this.brokerAutoScaling
+                ? Math.max(this.minBrokers, Math.min(this.maxBrokers, initialBrokers))
+                : initialBrokers;
+        this.scalingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(prop.getProperty("msg.scaling.brokers.intervalMillis", "5000"))
+        );
+        this.scaleUpQueueFill = Double.parseDouble(prop.getProperty("msg.scaling.brokers.up.queueFill", "0.5"));
+        this.scaleUpLatency = Long.parseLong(prop.getProperty("msg.scaling.brokers.up.p99Millis", "1000"));
+        this.scaleDownQueueFill = Double.parseDouble(prop.getProperty("msg.scaling.brokers.down.queueFill", "0.05"));
+        this.scaleDownLatency = Long.parseLong(prop.getProperty("msg.scaling.brokers.down.p99Millis", "100"));
+        this.priorityAgingNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(
+                prop.getProperty("msg.priority.agingMillis", String.valueOf(PriorityLanes.DEFAULT_AGING_MILLIS))
+        ));
+        this.topicConfigs = new EnumMap<>(TopicC.class);
+        this.virtualPermits = new EnumMap<>(TopicC.class);
+        for (TopicC topic : TopicC.values()) {
+            TopicConfig config = TopicConfig.fromProperties(prop, topic);
+            this.topicConfigs.put(topic, config);
+            if (config.isVirtualThreads()) this.virtualPermits.put(topic, new Semaphore(config.getMaxConcurrency()));
+            this.logger.debug("Topic configuration {}", config);
+        }
+        this.consumerCount = Math.max(1, Integer.parseInt(prop.getProperty("mq.consumer.channels", "1")));
+        this.prefetch = Integer.parseInt(prop.getProperty("mq.consumer.prefetch", "250"));
+        this.ackAfterReply = "reply".equalsIgnoreCase(prop.getProperty("mq.consumer.ack", "delivery"));
+        // Batches must stay smaller than the prefetch window, otherwise the consumer runs dry before acknowledging
+        this.ackBatchSize = Math.max(1, Math.min(
+                Integer.parseInt(prop.getProperty("mq.consumer.ack.batchSize", "50")),
+                this.prefetch / 2
+        ));
+        this.ackMaxDelay = Long.parseLong(prop.getProperty("mq.consumer.ack.maxDelayMillis", "100"));
+        this.ackMaxGap = Long.parseLong(
+                prop.getProperty("mq.consumer.ack.maxGapMillis", String.valueOf(AckBatcher.DEFAULT_MAX_GAP_MILLIS))
+        );
+        this.rejectDelay = Long.parseLong(prop.getProperty("mq.consumer.reject.delayMillis", "100"));
+        MessageInfoFactory.setPoolSize(Integer.parseInt(prop.getProperty("msg.messages.poolSize", "0")));
+        this.brokerQueueCapacity = Integer.parseInt(
+                prop.getProperty("msg.broker.queueCapacity", String.valueOf(Broker.DEFAULT_QUEUE_CAPACITY))
+        );
         this.queueName = prop.get("mq.hmmanager.queue.name").toString();
-        this.mqHost = prop.get("mq.host").toString();
+        if (transport != null) {
+            this.transport = transport;
+        } else if ("memory".equalsIgnoreCase(prop.getProperty("mq.transport", "rabbitmq"))) {
+            this.transport = new InMemoryTransport();
+        } else {
+            this.transport = new RabbitTransport(prop.get("mq.host").toString());
+        }
+        logger.debug("Using transport {}", this.transport.getClass().getSimpleName());
 
-        this.brokers = new ArrayList<>();
-        logger.debug("Working with " + this.numOfBrokers + " brokers");
+        this.brokers = new CopyOnWriteArrayList<>();
+        logger.debug("Working with {} brokers", this.numOfBrokers);
 
-        this.factory.setHost(this.mqHost);
+        this.replyPublisher = new ReplyPublisher(
+                this.transport,
+                Integer.parseInt(prop.getProperty("mq.reply.channels", "4")),
+                Boolean.parseBoolean(prop.getProperty("mq.reply.confirms", "false")),
+                Integer.parseInt(prop.getProperty("mq.reply.confirms.batchSize", "50"))
+        );
+        if (Boolean.parseBoolean(prop.getProperty("msg.dedup.enabled", "true"))) {
+            this.deduplicator = new RequestDeduplicator(
+                    this.replyPublisher,
+                    TimeUnit.MILLISECONDS.toNanos(Long.parseLong(prop.getProperty("msg.dedup.ttlMillis", "30000"))),
+                    Integer.parseInt(prop.getProperty("msg.dedup.cacheSize", "10000"))
+            );
+        } else {
+            this.deduplicator = null;
+        }
 
-        this.nextBroker = 0;
         this.state = StateC.INITIALIZED;
     }
 
+    /**
+     * Reads the configuration from the config.properties file
+     * @return Configuration of the coordinator
+     * @throws IOException When config.properties file is not found
+     */
+    private static Properties loadConfig() throws IOException {
+        Properties prop = new Properties();
+        String propFileName = "config.properties";
+        InputStream inputStream = Coordinator.class.getClassLoader().getResourceAsStream(propFileName);
+        prop.load(inputStream);
+        return prop;
+    }
+
     /**
      * Is called, whenever a new message from the queue should be added to a broker.
-     * Converts {@param message} into a {@link JsonNode} and adds it to the next free broker.
-     * @param message Message the broker should receive
+     * Wraps {@param body} into a {@link MessageInfo}, parses it once to find its topic and adds it to a broker.
+     * The parsed body is kept in the message, so subscribers do not have to parse it again.
+     * Repeats of a request, that is in flight or was answered recently, are not handed to a broker. They count as
+     * handed to a broker, as they are answered together with the request they repeat or were answered right away.
+     * @param body Body of the delivery
      * @param props AMQP Message props
+     * @param consumer Consumer channel the message was received on
+     * @param deliveryTag Delivery tag of the message on the consumer channel
+     * @return True, if the message was handed to a broker
      * @throws IllegalArgumentException When the message has no topic or message property
-     * @throws JsonProcessingException When {@param message} could not be deserialized into a {@link JsonNode}
+     * @throws IOException When {@param body} could not be deserialized into a {@link JsonNode}
      */
-    private void newMessage(String message, BasicProperties props)
-            throws IllegalArgumentException, JsonProcessingException {
+    private boolean newMessage(byte[] body, BasicProperties props, ConsumerChannel consumer, long deliveryTag)
+            throws IllegalArgumentException, IOException {
         this.logger.debug("Parsing json message into MessageInfo object");
-        try {
-            JsonNode node = new ObjectMapper().readTree(message);
-            if (!node.has("topic")) {
-                this.logger.info("Incomplete message received, no topic given");
-                throw new IllegalArgumentException("No topic given in json message");
-            }
-            if (!node.has("message")) {
-                this.logger.info("Incomplete message received, no message body given");
-                throw new IllegalArgumentException("No message body given in json message");
-            }
-
-            TopicC mTopic = TopicC.valueOf(node.get("topic").asText());
+        MessageInfo mi = MessageInfoFactory.createMessageInfo(body, props);
+        JsonNode node = mi.getTree();
+        if (node == null || !node.has("topic")) {
+            this.logger.info("Incomplete message received, no topic given");
+            throw new IllegalArgumentException("No topic given in json message");
+        }
+        if (!node.has("message")) {
+            this.logger.info("Incomplete message received, no message body given");
+            throw new IllegalArgumentException("No message body given in json message");
+        }
 
-            MessageInfo mi = MessageInfoFactory.createDefaultMessageInfo();
-            mi.setJsonMessage(node.get("message").toString());
-            mi.setMessageProps(props);
-            this.logger.debug("Created MessageInfo object for executing task");
+        TopicC mTopic = TopicC.valueOf(node.get("topic").asText());
+        mi.setDeliveryTag(deliveryTag);
+        mi.setConsumer(consumer.getIndex());
+        this.logger.debug("Created MessageInfo object for executing task");
 
-            this.newMessage(mTopic, mi);
-        } catch (Exception ex) {
-            LoggingUtils.logException(ex, this.logger, "info", "Message could not be deserialized due to an %s: %s");
+        RequestDeduplicator.Outcome outcome = this.deduplicator == null
+                ? RequestDeduplicator.Outcome.NEW
+                : this.deduplicator.register(mi);
+        if (outcome != RequestDeduplicator.Outcome.NEW) {
+            // Repeats attached to a request in flight are completed together with it
+            if (outcome == RequestDeduplicator.Outcome.ANSWERED && this.ackAfterReply) consumer.completed(deliveryTag);
+            MessageInfoFactory.recycle(mi);
+            return true;
         }
+
+        if (this.newMessage(mTopic, mi)) return true;
+        this.completeRequest(mi, false);
+        MessageInfoFactory.recycle(mi);
+        return false;
     }
+
     /**
-     * Adds a new message to the next broker in line
+     * Adds a new message to the less loaded of two randomly chosen brokers. Comparing only two brokers keeps the
+     * choice cheap, while still avoiding brokers whose subscribers are stuck.
      * @param topic Topic to which the message should be added
      * @param mi Message to be added to topic {@param topic}
+     * @return True, if the message was added to a broker, false if all brokers were full or unavailable
      */
-    public void newMessage(TopicC topic, MessageInfo mi) {
+    public boolean newMessage(TopicC topic, MessageInfo mi) {
         if (topic == null || mi == null) throw new IllegalArgumentException("No topic or message info given");
 
-        // Try to add answer to next broker. If it does not work, try the next broker instead
-        int tries = 0;
-        boolean dropped = false;
-        while (!this.brokers.get(this.nextBroker).addMessage(topic, mi) && tries < 2*this.numOfBrokers) {
-            this.nextBroker = (this.nextBroker + 1) % this.numOfBrokers;
-            tries++;
+        // Work on a snapshot, brokers may be added or retired at any time
+        Broker[] brokers = this.brokers.toArray(new Broker[0]);
+        int n = brokers.length;
+        Broker placed = null;
+        if (n > 0) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(n);
+            int second = n > 1 ? (first + 1 + random.nextInt(n - 1)) % n : first;
+            if (brokers[second].getLoad() < brokers[first].getLoad()) {
+                int less = second;
+                second = first;
+                first = less;
+            }
 
-            // If after 2 iterations of all brokers the message could still not be delivered, mark it as dropped
+            if (brokers[first].addMessage(topic, mi)) placed = brokers[first];
+            // If the chosen broker is full or unavailable, try every other broker once, starting with the second choice
             // TODO check broker health in coordinator thread and if necessary redeploy them
-            if (tries == 2*this.numOfBrokers) {
-                dropped = true;
-                break;
+            for (int i = 0; i < n && placed == null; i++) {
+                int index = (second + i) % n;
+                if (index == first) continue;
+                if (brokers[index].addMessage(topic, mi)) placed = brokers[index];
             }
         }
 
-        // Log that the message has been dropped
-        if (dropped) {
-            this.droppedMessages++;
-            this.logger.info("Message " + mi + " has been dropped due to brokers not being available");
-            this.logger.info(this.droppedMessages + " have been dropped so far");
-        } else this.logger.trace("Added message info object to broker " + this.nextBroker + ": " + this.brokers.get(this.nextBroker).toString());
-        this.nextBroker = (this.nextBroker + 1) % this.numOfBrokers;
+        // Log that the message has been rejected
+        if (placed == null) {
+            this.rejectedMessages.increment();
+            this.logger.info(
+                    "Message {} could not be placed, brokers are full or not available, {} have been rejected so far",
+                    mi.getId(), this.rejectedMessages.sum()
+            );
+            return false;
+        }
+        this.logger.trace("Added message {} to broker {}", mi.getId(), placed);
+        return true;
     }
 
     /**
-     * Returns all brokers this coordinator coordinates
+     * Returns all brokers this coordinator coordinates, except the ones being retired. The brokers change while
+     * scaling, so a copy of the current brokers is returned
      * @return All brokers of this coordinator
      */
     public ArrayList<Broker> getBrokers() {
-        return this.brokers;
+        return new ArrayList<>(this.brokers);
+    }
+
+    /**
+     * Moves queued messages from the broker with the most queued messages of a topic to brokers, that have no queued
+     * messages of that topic and whose subscribers have free capacity. That way, messages do not wait behind
+     * subscribers that are stuck, while subscribers of other brokers are idle. Is only called by the dispatch loop.
+     */
+    private void balanceBrokers() {
+        List<Broker> brokers = this.brokers;
+        if (brokers.size() < 2) return;
+        for (TopicC topic : TopicC.values()) {
+            Broker busiest = null;
+            int depth = 0;
+            for (Broker b : brokers) {
+                int d = b.getQueuedCount(topic);
+                if (d > depth) {
+                    busiest = b;
+                    depth = d;
+                }
+            }
+            if (busiest == null) continue;
+
+            for (Broker b : brokers) {
+                if (depth <= 0) break;
+                if (b == busiest || b.getQueuedCount(topic) > 0) continue;
+                int room = b.getFreeSubscriberCapacity(topic);
+                if (room <= 0) continue;
+
+                // Take at most half of the queue, the busy broker keeps the oldest messages for its own subscribers
+                ArrayList<MessageInfo> stolen = busiest.steal(topic, Math.min(room, (depth + 1) / 2));
+                if (stolen.isEmpty()) break;
+                b.adopt(topic, stolen);
+                b.notifyAllSubscribers();
+                depth -= stolen.size();
+                this.logger.debug(
+                        "Moved {} messages of topic {} from {} to {}", stolen.size(), topic, busiest, b
+                );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages, that can still be queued in all brokers together
+     * @return Free capacity of all broker queues
+     */
+    public int getCredit() {
+        int credit = 0;
+        for (Broker b : this.brokers) {
+            credit += b.getCredit();
+        }
+        return credit;
+    }
+
+    /**
+     * Returns the number of messages of topic {@param topic}, that can still be queued in all brokers together
+     * @param topic Topic of the messages
+     * @return Free capacity of the queues of the topic in all brokers
+     */
+    public int getCredit(TopicC topic) {
+        int credit = 0;
+        for (Broker b : this.brokers) {
+            credit += b.getCredit(topic);
+        }
+        return credit;
+    }
+
+    /**
+     * Returns the maximum number of messages of topic {@param topic}, that may be queued in all brokers together
+     * @param topic Topic of the messages
+     * @return Capacity of the queues of the topic in all brokers
+     */
+    public int getQueueCapacity(TopicC topic) {
+        int capacity = 0;
+        for (Broker b : this.brokers) {
+            capacity += b.getQueueCapacity(topic);
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns the maximum number of messages, that may be queued in all brokers together
+     * @return Capacity of all broker queues
+     */
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for (Broker b : this.brokers) {
+            capacity += b.getQueueCapacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns the number of messages of topic {@param topic} and priority {@param priority} queued in all brokers
+     * @param topic Topic of the messages
+     * @param priority Priority of the messages
+     * @return Number of queued messages of the topic in the lane of the priority
+     */
+    public int getQueuedCount(TopicC topic, PriorityC priority) {
+        int queued = 0;
+        for (Broker b : this.brokers) {
+            queued += b.getQueuedCount(topic, priority);
+        }
+        return queued;
+    }
+
+    /**
+     * Checks, whether the consumer is currently paused, because the brokers are saturated
+     * @return True, if no deliveries are pulled from the message queue at the moment
+     */
+    public boolean isConsumerPaused() {
+        return this.consumerPaused;
+    }
+
+    /**
+     * Returns the number of messages, that could not be placed in any broker and were given back to the message queue
+     * @return Number of rejected messages
+     */
+    public int getRejectedMessages() {
+        return this.rejectedMessages.intValue();
     }
 
     /**
@@ -179,84 +558,301 @@ public class Coordinator extends BlockingComponent implements Runnable {
      * Sets state of the coordinator. Can be used to stop it from working by setting state to StateC.STOPPED
      * @param state Current working state of the coordinator
      */
-    public void setState(StateC state) { this.state = state; }
+    public void setState(StateC state) {
+        this.state = state;
+        LockSupport.unpark(this.dispatcher);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Wakes up the dispatch loop, so the queued messages are handed to subscribers.
+     * @param broker Broker that needs its queued messages dispatched
+     */
+    @Override
+    public void dispatchNeeded(Broker broker) {
+        if (this.dispatchPending.compareAndSet(false, true)) LockSupport.unpark(this.dispatcher);
+    }
+
+    /**
+     * Pauses the consumer, if the credit of every topic fell below its {@link Coordinator#pauseCredits}, and resumes
+     * it, once the credit of any topic reached its {@link Coordinator#resumeCredits} again. The queue holds messages
+     * of all topics, so it is only paused when no topic has room left. A single topic, whose queues are full, does
+     * not stop the other topics from being consumed, its messages are given back to the queue instead. While the
+     * consumer is paused, new messages stay in the message queue instead of piling up in the brokers. Is only called
+     * by the dispatch loop.
+     */
+    private void checkCredit() {
+        ConsumerChannel[] consumers = this.consumers;
+        if (consumers.length == 0) return;
+        try {
+            if (!this.consumerPaused && this.isCreditExhausted()) {
+                for (ConsumerChannel c : consumers) {
+                    c.cancel();
+                }
+                this.consumerPaused = true;
+                this.logger.info(
+                        "Pausing consumer, the credit of every topic is below its pause credit: {}",
+                        this.describeCredit()
+                );
+            } else if (this.consumerPaused && this.isCreditRestored()) {
+                for (ConsumerChannel c : consumers) {
+                    c.consume((tag, props, body) -> this.handleDelivery(c, tag, props, body));
+                }
+                this.consumerPaused = false;
+                this.logger.info(
+                        "Resuming consumer, a topic reached its resume credit: {}", this.describeCredit()
+                );
+            }
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, this.logger, "warn", "%s occurred while adjusting the consumer to the broker credit: %s");
+        }
+    }
+
+    /**
+     * Checks, whether the credit of every topic fell below its pause credit
+     * @return True, if no topic has enough room left for the prefetch windows of the consumer channels
+     */
+    private boolean isCreditExhausted() {
+        int[] pauseCredits = this.pauseCredits;
+        for (TopicC topic : TopicC.values()) {
+            if (this.getCredit(topic) >= pauseCredits[topic.ordinal()]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks, whether the credit of any topic reached its resume credit
+     * @return True, if a topic has enough room again to resume the consumer
+     */
+    private boolean isCreditRestored() {
+        int[] resumeCredits = this.resumeCredits;
+        for (TopicC topic : TopicC.values()) {
+            if (this.getCredit(topic) >= resumeCredits[topic.ordinal()]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Describes the credit of every topic together with its thresholds for logging
+     * @return Credit, capacity, pause and resume credit of every topic
+     */
+    private String describeCredit() {
+        StringBuilder sb = new StringBuilder();
+        for (TopicC topic : TopicC.values()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(String.format(
+                    "%s %d of %d (pause below %d, resume at %d)",
+                    topic, this.getCredit(topic), this.getQueueCapacity(topic),
+                    this.pauseCredits[topic.ordinal()], this.resumeCredits[topic.ordinal()]
+            ));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Records the latency of the message and marks its delivery as completed, if deliveries are acknowledged after
+     * the reply. The message is not used afterwards and given back to the pool.
+     * @param broker Broker the message was given to
+     * @param mi Message that was completed
+     */
+    @Override
+    public void messageCompleted(Broker broker, MessageInfo mi) {
+        this.latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mi.getReceivedNanos()));
+        this.completeRequest(mi, true);
+        if (this.ackAfterReply) this.completeDelivery(mi.getConsumer(), mi.getDeliveryTag());
+        MessageInfoFactory.recycle(mi);
+    }
+
+    /**
+     * Ends deduplication of the request of {@param mi} and completes the deliveries of all its repeats, if
+     * deliveries are acknowledged after the reply
+     * @param mi Message whose request is done
+     * @param keepReply True, if later repeats may be answered with the reply sent for the request
+     */
+    private void completeRequest(MessageInfo mi, boolean keepReply) {
+        if (this.deduplicator == null) return;
+        ArrayList<RequestDeduplicator.Duplicate> duplicates = this.deduplicator.completed(mi, keepReply);
+        if (!this.ackAfterReply) return;
+        for (RequestDeduplicator.Duplicate d : duplicates) {
+            this.completeDelivery(d.getConsumer(), d.getDeliveryTag());
+        }
+    }
+
+    /**
+     * Marks the delivery with tag {@param deliveryTag} as completed, so it is acknowledged with the next batch of
+     * the consumer channel it was received on
+     * @param consumer Index of the consumer channel
+     * @param deliveryTag Delivery tag on the consumer channel
+     */
+    private void completeDelivery(int consumer, long deliveryTag) {
+        ConsumerChannel[] consumers = this.consumers;
+        if (consumer < consumers.length) consumers[consumer].completed(deliveryTag);
+    }
+
+    /**
+     * Handles a delivery received on {@param consumer}. Runs on the executor of the consumer channel, so deliveries
+     * of different consumer channels are handled in parallel.
+     * @param consumer Consumer channel the delivery was received on
+     * @param deliveryTag Delivery tag on the consumer channel
+     * @param props Properties of the delivery
+     * @param body Body of the delivery
+     */
+    private void handleDelivery(ConsumerChannel consumer, long deliveryTag, BasicProperties props, byte[] body) {
+        this.logger.debug("Received new message, start handling");
+        consumer.received(deliveryTag);
+        boolean placed;
+        try {
+            placed = this.newMessage(body, props, consumer, deliveryTag);
+        } catch (Exception ex) {
+            // Messages that can not be read will never succeed, they are answered and done right away
+            LoggingUtils.logException(ex, this.logger, "info", "Message could not be deserialized due to an %s: %s");
+            ReplyPublisher.Reply reply = this.errorReply(
+                    props, ErrorC.BAD_REQUEST, "Request could not be read: " + ex.getMessage()
+            );
+            if (reply != null) this.replyPublisher.replyAll(Collections.singletonList(reply));
+            consumer.failed(deliveryTag);
+            return;
+        }
+        // Messages that found no room are given back to the message queue instead of being dropped. The queues of
+        // their topic are usually still full a moment later, so they are held for a while instead of being
+        // redelivered right away. The others are completed right away or after the reply, when acknowledging after
+        // the reply
+        if (!placed) {
+            consumer.rejected(deliveryTag, this.rejectDelay);
+        } else {
+            consumer.placed();
+            if (!this.ackAfterReply) consumer.completed(deliveryTag);
+        }
+
+        // Let the dispatch loop pause the consumer, once the brokers run low on credit
+        if (!this.consumerPaused && this.isCreditExhausted()) LockSupport.unpark(this.dispatcher);
+    }
+
+    /**
+     * Returns the transport requests are consumed and replies are published with
+     * @return Transport of the coordinator
+     */
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Returns the channels the queue is consumed with, together with their throughput counters
+     * @return Consumer channels, empty if the coordinator is not running
+     */
+    public List<ConsumerChannel> getConsumers() {
+        return List.of(this.consumers);
+    }
+
+    /**
+     * Logs the throughput of every consumer channel since the last call, so an uneven spread of the load is visible
+     * @param received Number of deliveries every consumer channel had received at the last call, is updated
+     * @param seconds Seconds passed since the last call
+     */
+    private void logConsumerThroughput(long[] received, double seconds) {
+        ConsumerChannel[] consumers = this.consumers;
+        if (consumers.length == 0 || seconds <= 0) return;
+        StringBuilder sb = new StringBuilder("Consumer throughput in messages per second:");
+        for (int i = 0; i < consumers.length && i < received.length; i++) {
+            long count = consumers[i].getReceivedCount();
+            sb.append(String.format(" %s %.1f", consumers[i], (count - received[i]) / seconds));
+            received[i] = count;
+        }
+        this.logger.debug(sb.toString());
+    }
 
     /**
      * Runs main logic of the coordinator. Can and should be run in a different thread.
-     * Loops through the entire logic over and over again, until the state of the coordinator is set to
-     * something else than {@link StateC#WORKING}
+     * Sets up the message queue consumer and then runs the dispatch loop until the state of the coordinator is set
+     * to something else than {@link StateC#WORKING}. The loop only does work, when a broker signals that queued
+     * messages need to be dispatched or when queued messages have to be checked for timeouts. Otherwise, the thread
+     * is parked.
      */
     @Override
     public void run() {
+        this.dispatcher = Thread.currentThread();
         this.setup();
         if (this.state.equals(StateC.DESTROYED) || this.state.equals(StateC.INITIALIZED)) {
-            this.logger.debug(String.format("Cannot start coordinator, coordinator state is %s", this.state));
+            this.logger.debug("Cannot start coordinator, coordinator state is {}", this.state);
             return;
         }
         this.state = StateC.WORKING;
-        this.logger.debug("Setting up message queue consumer");
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(this.mqHost);
-        Connection conn = null;
-        Channel channel = null;
-        // Set up consumer
-        try {
-            conn = factory.newConnection();
-            channel = conn.createChannel();
-            channel.queueDeclare(this.queueName, false, false, false, null);
-            Channel finalChannel = channel;
-            DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-                this.logger.debug("Received new message, start handling");
-                String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                this.newMessage(message, delivery.getProperties());
-                finalChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                this.logger.debug("Acknowledged message");
-            };
-            channel.basicConsume(this.queueName, false, deliverCallback, (consumerTag -> { }));
-        } catch (Exception ex) {
-            LoggingUtils.logException(
-                    ex,
-                    this.logger,
-                    "warn",
-                    "%s occurred while trying to setup the message queue consumer: %s"
-            );
+        this.logger.debug("Setting up {} message queue consumer channels", this.consumerCount);
+        ConsumerChannel[] consumers = new ConsumerChannel[this.consumerCount];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new ConsumerChannel(i);
+        }
+        this.consumers = consumers;
+        // Set up consumers
+        for (ConsumerChannel c : consumers) {
+            try {
+                c.open(
+                        this.transport, this.queueName, this.prefetch, this.ackBatchSize, this.ackMaxDelay,
+                        this.ackMaxGap
+                );
+                c.consume((tag, props, body) -> this.handleDelivery(c, tag, props, body));
+            } catch (Exception ex) {
+                LoggingUtils.logException(
+                        ex,
+                        this.logger,
+                        "warn",
+                        "%s occurred while trying to setup the message queue consumer: %s"
+                );
+            }
         }
 
+        long nextCleanup = System.nanoTime() + CLEANUP_INTERVAL_NANOS;
+        long nextScaling = System.nanoTime() + this.scalingIntervalNanos;
+        long lastThroughput = System.nanoTime();
+        long[] received = new long[consumers.length];
         // Loop while the state of the component is still at WORKING
         while (this.state.equals(StateC.WORKING)) {
             try {
-                // Iterate through all brokers
-                for (Broker b : this.brokers) {
-                    // Notify all subscribers of the current broker of new messages
-                    b.notifyAllSubscribers();
-
-                    // Get all messages that weren't distributed yet
-                    ArrayList<MessageInfo> cleanedMessages = b.cleanup(this.messageTimeout);
-
-                    // Respond to all messages that weren't yet distributed
-                    for (MessageInfo mi : cleanedMessages) {
-                        this.logger.warn(String.format("Message %s was not distributed to a subscriber yet and was therefore cleaned", mi.toString()));
-                        try (Connection connection = this.factory.newConnection(); Channel chann = connection.createChannel()) {
-                            AMQP.BasicProperties replyProps = new AMQP.BasicProperties
-                                            .Builder()
-                                            .correlationId(mi.getMessageProps().getCorrelationId())
-                                            .build();
-
-                            // TODO build the answer object
-                            chann.basicPublish("", mi.getMessageProps().getReplyTo(), replyProps, "fail".getBytes(StandardCharsets.UTF_8));
-                        } catch (Exception ex) {
-                            LoggingUtils.logException(ex, this.logger, "warn");
-                        }
+                // Notify the subscribers of all brokers of queued messages, if any broker asked for it
+                if (this.dispatchPending.getAndSet(false)) {
+                    for (Broker b : this.brokers) {
+                        b.notifyAllSubscribers();
                     }
+                    this.balanceBrokers();
                 }
-            } catch (Exception ex) {
-                this.logger.info("Exception in run of coordinator: " + ex.getMessage());
-                StringBuilder stack = new StringBuilder();
-                for (var stel : ex.getStackTrace()) {
-                    stack.append(stel.toString());
-                    stack.append("\t\n");
+                this.checkCredit();
+
+                boolean backlog = false;
+                for (Broker b : this.brokers) {
+                    backlog |= b.hasQueuedMessages();
+                }
+
+                long now = System.nanoTime();
+                if (backlog && now - nextCleanup >= 0) {
+                    this.cleanupBrokers();
+                    nextCleanup = now + CLEANUP_INTERVAL_NANOS;
+                } else if (!backlog) {
+                    nextCleanup = now + CLEANUP_INTERVAL_NANOS;
+                }
+
+                boolean scaling = this.brokerAutoScaling || !this.drainingBrokers.isEmpty();
+                if (scaling && now - nextScaling >= 0) {
+                    this.checkAndScaleBrokers();
+                    nextScaling = now + this.scalingIntervalNanos;
+                    this.logConsumerThroughput(received, (now - lastThroughput) / 1e9);
+                    lastThroughput = now;
                 }
-                this.logger.debug(stack.toString());
+
+                // Wait for the next signal. While there are queued messages, wake up in time for the next cleanup,
+                // when scaling automatically, wake up in time for the next scaling check
+                if (!this.dispatchPending.get() && this.state.equals(StateC.WORKING)) {
+                    if (backlog && scaling) LockSupport.parkNanos(this, Math.min(nextCleanup - now, nextScaling - now));
+                    else if (backlog) LockSupport.parkNanos(this, nextCleanup - now);
+                    else if (scaling) LockSupport.parkNanos(this, nextScaling - now);
+                    else LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    this.logger.info("Coordinator thread was interrupted, stopping");
+                    this.state = StateC.STOPPED;
+                }
+            } catch (Exception ex) {
+                LoggingUtils.logException(ex, this.logger, "info", "%s in run of coordinator: %s");
             }
         }
 
@@ -265,16 +861,91 @@ public class Coordinator extends BlockingComponent implements Runnable {
         for (Broker br : this.brokers) {
             br.destroy();
         }
-        try {
-            if (channel != null) channel.close();
-            if (conn != null) conn.close();
-        } catch (Exception ex) {
-
+        for (Broker br : this.drainingBrokers) {
+            br.destroy();
+        }
+        for (ConsumerChannel c : consumers) {
+            c.close();
         }
+        this.replyPublisher.close();
+        this.transport.close();
         this.logger.debug("Coordinator stopped");
         this.state = StateC.STOPPED;
     }
 
+    /**
+     * Cleans up all brokers and answers all messages, whose deadline passed before they were given to a subscriber.
+     * The answers of all brokers are published in a single batch.
+     */
+    private void cleanupBrokers() {
+        ArrayList<MessageInfo> expired = new ArrayList<>();
+        for (Broker b : this.brokers) {
+            // Get all messages that weren't distributed yet
+            ArrayList<MessageInfo> cleanedMessages = b.cleanup();
+            if (cleanedMessages != null) expired.addAll(cleanedMessages);
+        }
+        if (expired.isEmpty()) return;
+
+        // Respond to all messages that weren't yet distributed
+        ArrayList<ReplyPublisher.Reply> replies = new ArrayList<>(expired.size());
+        for (MessageInfo mi : expired) {
+            this.logger.warn("Message {} was not distributed to a subscriber yet and was therefore cleaned", mi.getId());
+            ReplyPublisher.Reply reply = this.timeoutReply(mi);
+            if (reply != null) replies.add(reply);
+        }
+        this.replyPublisher.replyAll(replies);
+        for (MessageInfo mi : expired) {
+            this.completeRequest(mi, false);
+            if (this.ackAfterReply) this.completeDelivery(mi.getConsumer(), mi.getDeliveryTag());
+            MessageInfoFactory.recycle(mi);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Answers the message like a message that was cleaned up before it was given to a subscriber. The message is not
+     * used afterwards and given back to the pool.
+     * @param broker Broker the message was given to
+     * @param mi Message that expired
+     */
+    @Override
+    public void messageExpired(Broker broker, MessageInfo mi) {
+        ReplyPublisher.Reply reply = this.timeoutReply(mi);
+        if (reply != null) this.replyPublisher.replyAll(Collections.singletonList(reply));
+        this.completeRequest(mi, false);
+        if (this.ackAfterReply) this.completeDelivery(mi.getConsumer(), mi.getDeliveryTag());
+        MessageInfoFactory.recycle(mi);
+    }
+
+    /**
+     * Builds the answer telling the requester of {@param mi}, that the message expired before it was worked on
+     * @param mi Message that expired
+     * @return Reply in the format of the request, null if it could not be built
+     */
+    private ReplyPublisher.Reply timeoutReply(MessageInfo mi) {
+        return this.errorReply(
+                mi.getMessageProps(),
+                ErrorC.TIMEOUT,
+                "Request was not worked on before its deadline or the timeout of " + this.messageTimeout + "s"
+        );
+    }
+
+    /**
+     * Builds an error answer to the request with properties {@param props}
+     * @param props Properties of the request
+     * @param error Kind of the error
+     * @param message Description of the error for the requester
+     * @return Reply in the format of the request, null if it could not be built
+     */
+    private ReplyPublisher.Reply errorReply(BasicProperties props, ErrorC error, String message) {
+        try {
+            return ReplyPublisher.Reply.encode(props, new ErrorReply(error, message));
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, this.logger, "warn", "%s occurred while building error reply: %s");
+            return null;
+        }
+    }
+
     /**
      * Instantiates all brokers this coordinator coordinates
      */
@@ -283,62 +954,194 @@ public class Coordinator extends BlockingComponent implements Runnable {
         this.logger.debug("Adding brokers");
         this.tryToAcquireLock("brokers");
 
-        // Setup all brokers
-        for (int i = 0; i < this.numOfBrokers; i++) {
-            this.brokers.add(new Broker());
-        }
-        this.unlock("brokers");
-
         Set<Class<? extends Subscriber>> subClasses = ClassFinder.findMessageSubscribers();
-        ArrayList<Constructor<?>> subPrototypes = new ArrayList<>();
-
         for (var clazz : subClasses) {
             var constructors = clazz.getConstructors();
             for (Constructor<?> constr : constructors) {
                 var params = constr.getParameterTypes();
                 if (params.length == 1) {
-                    subPrototypes.add(constr);
+                    this.subPrototypes.add(constr);
                 }
             }
         }
-        for (Broker br : this.brokers) {
-            for (Constructor<?> constr : subPrototypes) {
-                try {
-                    br.addSubscriber((Subscriber) constr.newInstance(this.factory));
-                } catch (Exception ex) {
-                    LoggingUtils.logException(
-                            ex,
-                            this.logger,
-                            "warn",
-                            "%s occurred while trying to instantiate subscriber prototypes: %s"
-                    );
-                }
-            }
+
+        // Setup all brokers
+        for (int i = 0; i < this.numOfBrokers; i++) {
+            this.deployBroker();
         }
+        this.unlock("brokers");
+        this.updateCreditThresholds();
 
         this.state = StateC.STARTED;
         this.logger.debug("Coordinator is fully setup");
     }
 
     /**
-     * NOT YET IMPLEMENTED FULLY
+     * Creates a new broker with as many instances of every subscriber as configured for its topic and lets it
+     * receive new messages. The queue of every topic is bounded separately, so a single topic can not fill the
+     * whole broker or pause the consumer for the other topics.
+     * @return The new broker
+     */
+    private Broker deployBroker() {
+        Broker broker = new Broker(this.brokerQueueCapacity);
+        broker.setMessageTimeout(TimeUnit.SECONDS.toNanos(this.messageTimeout));
+        broker.setPriorityAging(this.priorityAgingNanos);
+        for (TopicConfig config : this.topicConfigs.values()) {
+            broker.setQueueCapacity(config.getTopic(), config.getQueueCapacity());
+        }
+        broker.setListener(this);
+        for (Constructor<?> constr : this.subPrototypes) {
+            try {
+                // The topic is only known once the first instance exists
+                Subscriber sub = (Subscriber) constr.newInstance(this.replyPublisher);
+                TopicConfig config = this.topicConfigs.get(sub.getTopic());
+                this.addSubscriber(broker, sub, config);
+                for (int i = 1; i < config.getWorkers(); i++) {
+                    this.addSubscriber(broker, (Subscriber) constr.newInstance(this.replyPublisher), config);
+                }
+            } catch (Exception ex) {
+                LoggingUtils.logException(
+                        ex,
+                        this.logger,
+                        "warn",
+                        "%s occurred while trying to instantiate subscriber prototypes: %s"
+                );
+            }
+        }
+        this.brokers.add(broker);
+        return broker;
+    }
+
+    /**
+     * Configures {@param sub} as given by the configuration of its topic and adds it to {@param broker}
+     * @param broker Broker the subscriber subscribes to
+     * @param sub Subscriber to be added
+     * @param config Configuration of the topic of the subscriber
+     */
+    private void addSubscriber(Broker broker, Subscriber sub, TopicConfig config) {
+        sub.setCapacity(config.getSubscriberCapacity());
+        sub.setPriorityAging(this.priorityAgingNanos);
+        sub.setVirtualExecution(this.virtualPermits.get(config.getTopic()));
+        sub.setMaxBatchSize(config.getMaxBatchSize());
+        broker.addSubscriber(sub);
+    }
+
+    /**
+     * Computes the credits at which the consumer is paused and resumed from the current queue capacity of every topic
+     * in all brokers. The consumer is paused early enough for the prefetch windows of all consumer channels to still
+     * fit into the queues of a topic. If the queues are too small for that, it is paused at half of their capacity. It
+     * is resumed once half of the credit above the pause is free again, so a few messages that stay queued do not keep
+     * it paused.
+     */
+    private void updateCreditThresholds() {
+        int window = this.prefetch * this.consumerCount;
+        int[] pauseCredits = new int[TopicC.values().length];
+        int[] resumeCredits = new int[TopicC.values().length];
+        for (TopicC topic : TopicC.values()) {
+            int capacity = this.getQueueCapacity(topic);
+            int pause = Math.min(window, capacity / 2);
+            pauseCredits[topic.ordinal()] = pause;
+            resumeCredits[topic.ordinal()] = pause + (capacity - pause) / 2;
+        }
+        this.pauseCredits = pauseCredits;
+        this.resumeCredits = resumeCredits;
+        if (this.logger.isDebugEnabled()) this.logger.debug("Consumer credit thresholds: {}", this.describeCredit());
+    }
+
+    /**
+     * Adds a broker, if the queues are filling up or messages take too long, and retires one, if the load is low.
+     * The number of brokers always stays between {@link Coordinator#minBrokers} and {@link Coordinator#maxBrokers}.
+     * Every scaling decision is logged together with the metrics it was based on. Is only called by the dispatch loop.
      */
-    private void checkAndRedeployBrokers() {
-        if (!this.tryToAcquireLock("brokers")) return;
-        ArrayList<Broker> toDelete = new ArrayList<>();
-        // TODO implement health check correctly
+    private void checkAndScaleBrokers() {
+        this.retireDrainedBrokers();
+        if (!this.brokerAutoScaling) return;
+
+        int count = this.brokers.size();
+        int queued = 0;
+        int capacity = 0;
         for (Broker b : this.brokers) {
-            b.checkOwnHealth();
-            if (b.getHealth().compareTo(HealthC.SLOW) >=0) {
+            queued += b.getQueuedCount();
+            capacity += b.getQueueCapacity();
+        }
+        double fill = capacity == 0 ? 0 : (double) queued / capacity;
+        int samples = this.latencies.getSampleCount();
+        long p99 = this.latencies.percentile(99);
+        this.latencies.reset();
+        String metrics = String.format(
+                "queue fill %.2f (%d of %d queued), p99 latency %d ms over %d messages",
+                fill, queued, capacity, p99, samples
+        );
+
+        if (count < this.maxBrokers && (fill >= this.scaleUpQueueFill || p99 >= this.scaleUpLatency)) {
+            this.logger.info("Scaling up from {} to {} brokers: {}", count, count + 1, metrics);
+            if (!this.tryToAcquireLock("brokers")) return;
+            this.deployBroker();
+            this.unlock("brokers");
+            this.updateCreditThresholds();
+        } else if (count > this.minBrokers && fill <= this.scaleDownQueueFill && p99 <= this.scaleDownLatency) {
+            this.logger.info("Scaling down from {} to {} brokers: {}", count, count - 1, metrics);
+            if (!this.tryToAcquireLock("brokers")) return;
+            this.drainBroker();
+            this.unlock("brokers");
+            this.updateCreditThresholds();
+        } else {
+            this.logger.debug("Keeping {} brokers: {}", count, metrics);
+        }
+    }
+
+    /**
+     * Retires the least loaded broker. It is removed from the brokers receiving new messages and its queued messages
+     * are moved to the remaining brokers. Its subscribers keep working on the messages they already have, the broker
+     * is destroyed by {@link Coordinator#retireDrainedBrokers()} once they are done.
+     */
+    private void drainBroker() {
+        Broker retired = null;
+        for (Broker b : this.brokers) {
+            if (retired == null || b.getLoad() < retired.getLoad()) retired = b;
+        }
+        if (retired == null) return;
+        this.brokers.remove(retired);
+        this.drainingBrokers.add(retired);
+        this.moveQueuedMessages(retired);
+        this.logger.debug("Draining broker {}", retired);
+    }
+
+    /**
+     * Destroys all retired brokers, that have no messages left. Messages that were still added to a retired broker
+     * after it was removed are moved to the remaining brokers.
+     */
+    private void retireDrainedBrokers() {
+        Iterator<Broker> it = this.drainingBrokers.iterator();
+        while (it.hasNext()) {
+            Broker b = it.next();
+            this.moveQueuedMessages(b);
+            if (b.getInFlightCount() == 0 && !b.hasQueuedMessages()) {
                 b.destroy();
-                toDelete.add(b);
+                it.remove();
+                this.logger.info("Retired broker {}, {} brokers remain", b, this.brokers.size());
             }
         }
-        this.brokers.removeAll(toDelete);
-        for (int i = 0; i < toDelete.size(); i++) {
-            Broker newB = new Broker();
-            this.brokers.add(newB);
+    }
+
+    /**
+     * Moves all queued messages of {@param from} to the least loaded broker receiving new messages
+     * @param from Broker to take the messages from
+     */
+    private void moveQueuedMessages(Broker from) {
+        if (!from.hasQueuedMessages()) return;
+        Broker to = null;
+        for (Broker b : this.brokers) {
+            if (to == null || b.getLoad() < to.getLoad()) to = b;
         }
-        this.unlock("brokers");
+        if (to == null) return;
+        for (TopicC topic : TopicC.values()) {
+            ArrayList<MessageInfo> moved = from.steal(topic, Integer.MAX_VALUE);
+            if (moved.isEmpty()) continue;
+            // Stolen messages come from the tail of the queue, restore their original order
+            Collections.reverse(moved);
+            to.adopt(topic, moved);
+        }
+        to.notifyAllSubscribers();
     }
 }
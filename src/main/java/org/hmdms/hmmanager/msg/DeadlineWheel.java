@@ -0,0 +1,195 @@
+package org.hmdms.hmmanager.msg;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Hashed timing wheel for the deadlines of queued messages. Every queued message is scheduled into the bucket of the
+ * tick its deadline falls into, so finding expired messages only visits the buckets of the ticks that passed instead
+ * of every queued message.
+ * Entries are never removed when a message leaves the queue. Instead, expiring a message claims it with
+ * {@link MessageInfo#markCollected()}, which fails for messages that were handed to a subscriber in the meantime, and
+ * entries of messages that were queued elsewhere or reused since are recognized by their queue generation.
+ * Any number of threads may schedule messages, but only a single thread at a time may expire them.
+ */
+public class DeadlineWheel {
+    /**
+     * Default length of a tick in milliseconds
+     */
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    /**
+     * Default number of buckets. Together with the default tick, deadlines of up to 51.2 seconds are found without
+     * visiting them more than once
+     */
+    public static final int DEFAULT_SIZE = 512;
+
+    /**
+     * A scheduled message
+     */
+    private static class Entry {
+        /**
+         * Scheduled message
+         */
+        private final MessageInfo mi;
+        /**
+         * Topic the message is queued in
+         */
+        private final TopicC topic;
+        /**
+         * Queue generation of the message at the time it was scheduled
+         */
+        private final long generation;
+        /**
+         * Deadline of the message in {@link System#nanoTime()}
+         */
+        private final long deadlineNanos;
+
+        /**
+         * Creates a new entry
+         * @param mi Scheduled message
+         * @param topic Topic the message is queued in
+         * @param generation Queue generation of the message
+         * @param deadlineNanos Deadline of the message
+         */
+        private Entry(MessageInfo mi, TopicC topic, long generation, long deadlineNanos) {
+            this.mi = mi;
+            this.topic = topic;
+            this.generation = generation;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * Entries scheduled since the last call of {@link DeadlineWheel#expire(long, BiConsumer)}. Are moved into their
+     * buckets by the expiring thread, so the buckets themselves are never shared between threads
+     */
+    private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    /**
+     * Entries by the tick their deadline falls into, modulo the number of buckets
+     */
+    private final ArrayList<ArrayList<Entry>> buckets;
+    /**
+     * Length of a tick in nanoseconds
+     */
+    private final long tickNanos;
+    /**
+     * Bit mask for mapping ticks to buckets
+     */
+    private final int mask;
+    /**
+     * {@link System#nanoTime()} at which the first tick started
+     */
+    private final long origin;
+    /**
+     * Next tick, whose bucket has not been visited yet
+     */
+    private long cursor;
+
+    /**
+     * Creates a wheel with the default tick and size
+     */
+    public DeadlineWheel() {
+        this(TimeUnit.MILLISECONDS.toNanos(DEFAULT_TICK_MILLIS), DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a wheel with {@param size} buckets of {@param tickNanos} each
+     * @param tickNanos Length of a tick in nanoseconds. Messages expire at most one tick after their deadline
+     * @param size Number of buckets, is rounded up to a power of two
+     * @throws IllegalArgumentException When the tick or the size is smaller than 1
+     */
+    public DeadlineWheel(long tickNanos, int size) throws IllegalArgumentException {
+        if (tickNanos < 1 || size < 1) throw new IllegalArgumentException("Tick and size must be at least 1");
+        int buckets = Integer.highestOneBit(size);
+        if (buckets < size) buckets <<= 1;
+        this.tickNanos = tickNanos;
+        this.mask = buckets - 1;
+        this.buckets = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            this.buckets.add(new ArrayList<>());
+        }
+        this.origin = System.nanoTime();
+        this.cursor = 0;
+    }
+
+    /**
+     * Schedules {@param mi}, that was just queued in topic {@param topic}, to expire at {@param deadlineNanos}
+     * @param topic Topic the message is queued in
+     * @param mi Queued message
+     * @param deadlineNanos Deadline of the message in {@link System#nanoTime()}
+     */
+    public void schedule(TopicC topic, MessageInfo mi, long deadlineNanos) {
+        this.incoming.offer(new Entry(mi, topic, mi.getQueueGeneration(), deadlineNanos));
+    }
+
+    /**
+     * Claims all scheduled messages whose deadline passed and that are still queued where they were scheduled, and
+     * passes them to {@param expired}
+     * @param now Current {@link System#nanoTime()}
+     * @param expired Called with the topic and the message for every expired message
+     * @return Number of expired messages
+     */
+    public int expire(long now, BiConsumer<TopicC, MessageInfo> expired) {
+        int count = 0;
+        Entry entry;
+        while ((entry = this.incoming.poll()) != null) {
+            // Messages whose deadline passed before they were even sorted in are expired right away
+            if (now - entry.deadlineNanos >= 0) {
+                if (this.claim(entry)) {
+                    expired.accept(entry.topic, entry.mi);
+                    count++;
+                }
+                continue;
+            }
+            long tick = Math.max(this.cursor, this.tickOf(entry.deadlineNanos));
+            this.buckets.get((int) (tick & this.mask)).add(entry);
+        }
+
+        // Only ticks that passed completely are visited, so every entry of them is due, unless it is in a later round
+        long current = this.tickOf(now);
+        // After a long pause, a single round visits every bucket
+        if (current - this.cursor > this.mask + 1) this.cursor = current - this.mask - 1;
+        for (; this.cursor < current; this.cursor++) {
+            ArrayList<Entry> bucket = this.buckets.get((int) (this.cursor & this.mask));
+            int kept = 0;
+            for (int i = 0; i < bucket.size(); i++) {
+                Entry e = bucket.get(i);
+                if (now - e.deadlineNanos < 0) {
+                    bucket.set(kept++, e);
+                } else if (this.claim(e)) {
+                    expired.accept(e.topic, e.mi);
+                    count++;
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+        }
+        return count;
+    }
+
+    /**
+     * Claims the message of {@param entry}, if it is still queued where it was scheduled
+     * @param entry Entry of a message, whose deadline passed
+     * @return True, if the message was claimed and must be answered as expired
+     */
+    private boolean claim(Entry entry) {
+        MessageInfo mi = entry.mi;
+        if (mi.getQueueGeneration() != entry.generation || !mi.markCollected()) return false;
+        // The message may have been reused between the check and claiming it
+        if (mi.getQueueGeneration() != entry.generation) {
+            mi.setCollected(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tick {@param nanos} falls into
+     * @param nanos Value of {@link System#nanoTime()}
+     * @return Number of the tick
+     */
+    private long tickOf(long nanos) {
+        return Math.max(0, (nanos - this.origin) / this.tickNanos);
+    }
+}
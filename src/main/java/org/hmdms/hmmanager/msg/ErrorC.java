@@ -0,0 +1,23 @@
+package org.hmdms.hmmanager.msg;
+
+/**
+ * Collection of all errors a request can be answered with
+ */
+public enum ErrorC {
+    /**
+     * The request was not worked on before its deadline or the message timeout passed
+     */
+    TIMEOUT,
+    /**
+     * The request could not be read or misses required information
+     */
+    BAD_REQUEST,
+    /**
+     * The request was rejected, because the given information was wrong, e.g. invalid credentials
+     */
+    REJECTED,
+    /**
+     * Something went wrong on our side while working on the request
+     */
+    INTERNAL
+}
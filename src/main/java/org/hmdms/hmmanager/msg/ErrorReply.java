@@ -0,0 +1,74 @@
+package org.hmdms.hmmanager.msg;
+
+import java.io.Serializable;
+
+/**
+ * Answer to a request, that could not be worked on successfully. Is serialized in the format of the request like
+ * every other answer, so requesters can tell errors apart from regular answers by the error property.
+ */
+public class ErrorReply implements Serializable {
+    /**
+     * Kind of the error
+     */
+    private ErrorC error;
+    /**
+     * Description of the error for the requester
+     */
+    private String message;
+
+    /**
+     * Creates an empty ErrorReply object
+     */
+    public ErrorReply() { }
+
+    /**
+     * Creates a new error reply
+     * @param error Kind of the error
+     * @param message Description of the error for the requester
+     */
+    public ErrorReply(ErrorC error, String message) {
+        this.error = error;
+        this.message = message;
+    }
+
+    /**
+     * Returns the kind of the error
+     * @return Kind of the error
+     */
+    public ErrorC getError() {
+        return error;
+    }
+
+    /**
+     * Sets the kind of the error
+     * @param error Kind of the error
+     */
+    public void setError(ErrorC error) {
+        this.error = error;
+    }
+
+    /**
+     * Returns the description of the error
+     * @return Description of the error for the requester
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Sets the description of the error
+     * @param message Description of the error for the requester
+     */
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Builds String representation of the error and returns it
+     * @return String representation of the error
+     */
+    @Override
+    public String toString() {
+        return "ErrorReply{error=" + error + ", message='" + message + "'}";
+    }
+}
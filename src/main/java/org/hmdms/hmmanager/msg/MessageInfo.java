@@ -1,12 +1,16 @@
 package org.hmdms.hmmanager.msg;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.rabbitmq.client.BasicProperties;
+import org.hmdms.hmmanager.msg.codecs.MessageCodec;
+import org.hmdms.hmmanager.msg.codecs.MessageCodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Date;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that represents a message in the system
@@ -16,27 +20,57 @@ public class MessageInfo implements Serializable {
     /**
      * Logger
      */
-    private final Logger logger = LoggerFactory.getLogger(MessageInfo.class);
+    private static final Logger logger = LoggerFactory.getLogger(MessageInfo.class);
     /**
-     * ID of the message. {@link Broker} uses this to identify message
+     * Source of the ids of all messages on this node
      */
-    private String uuid;
+    private static final AtomicLong nextId = new AtomicLong(0);
     /**
-     * Date at which the message was received
+     * ID of the message, unique and increasing on this node. {@link Broker} uses this to identify message
      */
-    private Date received;
+    private long id;
+    /**
+     * Delivery tag of the message on the channel it was consumed from
+     */
+    private long deliveryTag;
+    /**
+     * Index of the consumer channel the message was received on. Delivery tags are only valid on that channel
+     */
+    private int consumer;
+    /**
+     * Value of {@link System#nanoTime()} at which the message was received
+     */
+    private long receivedNanos;
+    /**
+     * Value of {@link System#nanoTime()} after which the message must not be worked on anymore, 0 if the message has
+     * no deadline of its own
+     */
+    private long deadlineNanos;
+    /**
+     * Increased every time the message is reused or queued in a broker. Lets a {@link DeadlineWheel} recognize
+     * entries of messages, that left the queue they were scheduled for
+     */
+    private volatile long queueGeneration;
     /**
      * Information in the message
      */
     private String jsonMessage;
+    /**
+     * Body of the delivery the message was created from
+     */
+    private byte[] body;
+    /**
+     * Parsed {@link MessageInfo#body}. Is parsed on first access and shared by everyone working on the message
+     */
+    private transient volatile JsonNode tree;
     /**
      * Shows, whether the message was collected by a subscriber. Used by {@link Broker} class.
      */
-    private boolean collected;
+    private final AtomicBoolean collected;
     /**
-     * Date when the message was collected
+     * Value of {@link System#nanoTime()} at which the message was collected, 0 if it was not collected
      */
-    private Date collectionDate;
+    private long collectedNanos;
     /**
      * Properties of the rabbitmq message.
      * In order to be able to reply to the rpc message, {@link BasicProperties#getReplyTo()} must not return null or
@@ -48,12 +82,10 @@ public class MessageInfo implements Serializable {
      * Default Constructor
      */
     public MessageInfo() {
-        this.logger.debug("Empty MessageInfo Object");
-
-        this.uuid = UUID.randomUUID().toString();
-        this.received = new Date();
-        this.collected = false;
-        this.collectionDate = null;
+        this.id = nextId.incrementAndGet();
+        this.receivedNanos = System.nanoTime();
+        this.collected = new AtomicBoolean(false);
+        this.collectedNanos = 0;
     }
 
     /**
@@ -76,35 +108,142 @@ public class MessageInfo implements Serializable {
     }
 
     /**
-     * Gets uuid of the message
-     * @return uuid of the message
+     * Constructor for messages received from the message queue. The body is kept as it is and only parsed, when it
+     * is accessed for the first time.
+     * @param props RabbitMQ props of the message
+     * @param body Body of the delivery
+     */
+    public MessageInfo(BasicProperties props, byte[] body) {
+        this(props);
+        this.body = body;
+    }
+
+    /**
+     * Prepares a recycled message for a new delivery, as if it was created by
+     * {@link MessageInfo#MessageInfo(BasicProperties, byte[])}. Is used by {@link MessageInfoFactory}.
+     * @param props RabbitMQ props of the message
+     * @param body Body of the delivery
+     */
+    void reset(BasicProperties props, byte[] body) {
+        this.id = nextId.incrementAndGet();
+        this.receivedNanos = System.nanoTime();
+        this.collected.set(false);
+        this.collectedNanos = 0;
+        this.deadlineNanos = 0;
+        this.queueGeneration++;
+        this.deliveryTag = 0;
+        this.consumer = 0;
+        this.jsonMessage = null;
+        this.tree = null;
+        this.messageProps = props;
+        this.body = body;
+    }
+
+    /**
+     * Drops all references of the message, so a pooled instance does not keep the last delivery alive
+     */
+    void clear() {
+        this.jsonMessage = null;
+        this.tree = null;
+        this.messageProps = null;
+        this.body = null;
+    }
+
+    /**
+     * Gets id of the message
+     * @return id of the message
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Gets the delivery tag of the message on the channel it was consumed from
+     * @return delivery tag of the message
+     */
+    public long getDeliveryTag() {
+        return deliveryTag;
+    }
+
+    /**
+     * Sets the delivery tag of the message on the channel it was consumed from
+     * @param deliveryTag delivery tag of the message
      */
-    public String getUuid() {
-        return uuid;
+    public void setDeliveryTag(long deliveryTag) {
+        this.deliveryTag = deliveryTag;
     }
 
     /**
-     * Sets uuid of the message
-     * @param uuid uuid of the message
+     * Gets the index of the consumer channel the message was received on
+     * @return index of the consumer channel
      */
-    public void setUuid(String uuid) {
-        this.uuid = uuid;
+    public int getConsumer() {
+        return consumer;
     }
 
     /**
-     * Gets date of reception
-     * @return date of reception
+     * Sets the index of the consumer channel the message was received on
+     * @param consumer index of the consumer channel
      */
-    public Date getReceived() {
-        return received;
+    public void setConsumer(int consumer) {
+        this.consumer = consumer;
     }
 
     /**
-     * Sets date of reception
-     * @param received date of reception
+     * Gets the {@link System#nanoTime()} of reception
+     * @return nano time of reception
      */
-    public void setReceived(Date received) {
-        this.received = received;
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Sets the {@link System#nanoTime()} of reception
+     * @param receivedNanos nano time of reception
+     */
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Gets the {@link System#nanoTime()} after which the message must not be worked on anymore
+     * @return nano time of the deadline, 0 if the message has no deadline of its own
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * Sets the {@link System#nanoTime()} after which the message must not be worked on anymore
+     * @param deadlineNanos nano time of the deadline, 0 for no deadline
+     */
+    public void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Checks, whether the deadline of the message has passed
+     * @param now Current {@link System#nanoTime()}
+     * @return True, if the message has a deadline and it passed
+     */
+    public boolean isExpired(long now) {
+        return this.deadlineNanos != 0 && now - this.deadlineNanos >= 0;
+    }
+
+    /**
+     * Returns the number of times the message was reused or queued in a broker
+     * @return Current queue generation of the message
+     */
+    long getQueueGeneration() {
+        return queueGeneration;
+    }
+
+    /**
+     * Increases the queue generation, when the message is queued in a broker
+     * @return New queue generation of the message
+     */
+    long nextQueueGeneration() {
+        return ++this.queueGeneration;
     }
 
     /**
@@ -112,7 +251,7 @@ public class MessageInfo implements Serializable {
      * @return true, if the message has been collected by an object that works with it's information, false otherwise
      */
     public boolean isCollected() {
-        return collected;
+        return collected.get();
     }
 
     /**
@@ -121,7 +260,16 @@ public class MessageInfo implements Serializable {
      *                  otherwise
      */
     public void setCollected(boolean collected) {
-        this.collected = collected;
+        this.collected.set(collected);
+    }
+
+    /**
+     * Atomically marks the message as collected, if it has not been collected yet.
+     * Used by {@link Broker} to make sure a message is only ever handed to a single subscriber.
+     * @return True, if this call marked the message as collected, false if it was already collected before
+     */
+    public boolean markCollected() {
+        return this.collected.compareAndSet(false, true);
     }
 
     /**
@@ -131,28 +279,28 @@ public class MessageInfo implements Serializable {
     @Override
     public String toString() {
         return "MessageInfo{" +
-                "uuid='" + uuid + '\'' +
-                ", received=" + received +
+                "id=" + id +
+                ", receivedNanos=" + receivedNanos +
                 ", jsonMessage='" + jsonMessage + '\'' +
                 ", collected=" + collected +
-                ", collectionDate=" + collectionDate +
+                ", collectedNanos=" + collectedNanos +
                 '}';
     }
 
     /**
-     * Gets date of collection
-     * @return date of collection
+     * Gets the {@link System#nanoTime()} of collection
+     * @return nano time of collection, 0 if the message was not collected
      */
-    public Date getCollectionDate() {
-        return collectionDate;
+    public long getCollectedNanos() {
+        return collectedNanos;
     }
 
     /**
-     * Sets date of collection
-     * @param collectionDate date of collection
+     * Sets the {@link System#nanoTime()} of collection
+     * @param collectedNanos nano time of collection, 0 if the message is not collected anymore
      */
-    public void setCollectionDate(Date collectionDate) {
-        this.collectionDate = collectionDate;
+    public void setCollectedNanos(long collectedNanos) {
+        this.collectedNanos = collectedNanos;
     }
 
     /**
@@ -163,6 +311,14 @@ public class MessageInfo implements Serializable {
         return messageProps;
     }
 
+    /**
+     * Returns the priority lane of the message, taken from the AMQP priority property
+     * @return Priority of the message, {@link PriorityC#NORMAL} if it has none
+     */
+    public PriorityC getPriority() {
+        return PriorityC.of(this.messageProps == null ? null : this.messageProps.getPriority());
+    }
+
     /**
      * Sets rpc message properties object
      * @param messageProps rpc message properties object
@@ -172,13 +328,63 @@ public class MessageInfo implements Serializable {
     }
 
     /**
-     * Returns the json message that is to be transmitted by this object
+     * Returns the json message that is to be transmitted by this object. For messages received from the message
+     * queue, it is serialized from the message node on first access.
      * @return json message that is to be transmitted by this object
      */
     public String getJsonMessage() {
+        if (this.jsonMessage == null && this.body != null) {
+            try {
+                JsonNode message = this.getMessageNode();
+                if (message != null) this.jsonMessage = message.toString();
+            } catch (IOException ex) {
+                logger.debug("Body of message {} is not valid json", this.id);
+            }
+        }
         return jsonMessage;
     }
 
+    /**
+     * Returns the body of the delivery the message was created from
+     * @return body of the delivery, null if the message was not received from the message queue
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the codec for the format of the body, selected by the content type of the delivery
+     * @return Codec for the body, the json codec if the delivery has no or an unsupported content type
+     */
+    public MessageCodec getCodec() {
+        return MessageCodecs.forContentType(this.messageProps == null ? null : this.messageProps.getContentType());
+    }
+
+    /**
+     * Returns the parsed body of the message. The body is parsed only once, all later calls return the same tree,
+     * which must therefore not be modified.
+     * @return Parsed body, null if the message has no body
+     * @throws IOException When the body is not valid in the format given by its content type
+     */
+    public JsonNode getTree() throws IOException {
+        JsonNode node = this.tree;
+        if (node == null && this.body != null) {
+            node = this.getCodec().readTree(this.body);
+            this.tree = node;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the message property of the parsed body, which holds the information for the subscriber
+     * @return Node of the message property, null if there is none
+     * @throws IOException When the body is not valid json
+     */
+    public JsonNode getMessageNode() throws IOException {
+        JsonNode node = this.getTree();
+        return node == null ? null : node.get("message");
+    }
+
     /**
      * Sets the json message that is to be transmitted by this object
      * @param jsonMessage json message that is to be transmitted by this object
@@ -1,19 +1,29 @@
 package org.hmdms.hmmanager.msg;
 
+import com.rabbitmq.client.BasicProperties;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 /**
- * Factory class for Message Information
+ * Factory class for Message Information.
+ * Optionally keeps a pool of recycled {@link MessageInfo} objects for messages received from the message queue, so
+ * no new object has to be allocated per delivery. Pooling is disabled by default.
  */
 public class MessageInfoFactory {
 
     /**
      * Logger
      */
-    private final Logger logger = LoggerFactory.getLogger(MessageInfoFactory.class);
+    private static final Logger logger = LoggerFactory.getLogger(MessageInfoFactory.class);
+    /**
+     * Recycled messages, null while pooling is disabled
+     */
+    private static volatile ArrayBlockingQueue<MessageInfo> pool;
 
     /**
      * Default constructor
@@ -28,4 +38,79 @@ public class MessageInfoFactory {
         return new MessageInfo();
     }
 
+    /**
+     * Returns a MessageInfo object for a delivery from the message queue. If pooling is enabled, a recycled object
+     * is reused, if there is one.
+     * @param body Body of the delivery
+     * @param props AMQP properties of the delivery
+     * @return A MessageInfo object backed by {@param body}
+     */
+    public static @NotNull MessageInfo createMessageInfo(byte[] body, BasicProperties props) {
+        ArrayBlockingQueue<MessageInfo> p = pool;
+        MessageInfo mi = p == null ? null : p.poll();
+        if (mi == null) mi = new MessageInfo(props, body);
+        else mi.reset(props, body);
+        mi.setDeadlineNanos(deadlineOf(props, mi.getReceivedNanos()));
+        return mi;
+    }
+
+    /**
+     * Computes the deadline of a delivery from its AMQP expiration property, which is a time to live in
+     * milliseconds, and its deadline header, which is a point in time in milliseconds since the epoch. If both are
+     * given, the earlier one is used.
+     * @param props AMQP properties of the delivery
+     * @param receivedNanos {@link System#nanoTime()} at which the delivery was received
+     * @return Deadline in {@link System#nanoTime()}, 0 if the delivery has no valid deadline
+     */
+    private static long deadlineOf(BasicProperties props, long receivedNanos) {
+        if (props == null) return 0;
+        long deadline = 0;
+        String expiration = props.getExpiration();
+        if (expiration != null && !expiration.isEmpty()) {
+            try {
+                deadline = receivedNanos + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(expiration.trim()));
+            } catch (NumberFormatException ex) {
+                logger.debug("Ignoring invalid expiration {}", expiration);
+            }
+        }
+
+        Object header = props.getHeaders() == null ? null : props.getHeaders().get("deadline");
+        if (header != null) {
+            try {
+                long epochMillis = header instanceof Number
+                        ? ((Number) header).longValue()
+                        : Long.parseLong(header.toString().trim());
+                long headerDeadline = receivedNanos
+                        + TimeUnit.MILLISECONDS.toNanos(epochMillis - System.currentTimeMillis());
+                if (deadline == 0 || headerDeadline - deadline < 0) deadline = headerDeadline;
+            } catch (NumberFormatException ex) {
+                logger.debug("Ignoring invalid deadline header {}", header);
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Gives {@param mi} back to the pool. Must only be called once the message is completely done, that is after it
+     * was answered and its delivery was completed, and nobody holds a reference to it anymore.
+     * Does nothing, if pooling is disabled or the pool is full.
+     * @param mi Message that is not used anymore
+     */
+    public static void recycle(MessageInfo mi) {
+        ArrayBlockingQueue<MessageInfo> p = pool;
+        if (p == null || mi == null) return;
+        mi.clear();
+        p.offer(mi);
+    }
+
+    /**
+     * Enables pooling of up to {@param size} recycled messages, or disables pooling, if {@param size} is smaller
+     * than 1
+     * @param size Maximum number of recycled messages kept
+     */
+    public static void setPoolSize(int size) {
+        pool = size > 0 ? new ArrayBlockingQueue<>(size) : null;
+        if (size > 0) logger.debug("Pooling up to {} message objects", size);
+        else logger.debug("Message object pooling disabled");
+    }
 }
@@ -0,0 +1,31 @@
+package org.hmdms.hmmanager.msg;
+
+/**
+ * Priority lanes messages are queued in, derived from the AMQP priority property of the delivery
+ */
+public enum PriorityC {
+    /**
+     * Bulk and background requests, AMQP priority 0 to 2
+     */
+    LOW,
+    /**
+     * Default lane for messages without a priority, AMQP priority 3 to 6
+     */
+    NORMAL,
+    /**
+     * Interactive requests like logins, AMQP priority 7 and above
+     */
+    HIGH;
+
+    /**
+     * Returns the lane for the AMQP priority {@param priority}
+     * @param priority Priority property of the delivery, may be null
+     * @return Lane of the priority, {@link PriorityC#NORMAL} if no priority is given
+     */
+    public static PriorityC of(Integer priority) {
+        if (priority == null) return NORMAL;
+        if (priority >= 7) return HIGH;
+        if (priority >= 3) return NORMAL;
+        return LOW;
+    }
+}
@@ -0,0 +1,162 @@
+package org.hmdms.hmmanager.msg;
+
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of messages with a lock-free FIFO lane per {@link PriorityC}. Messages of higher lanes are taken first, but
+ * every lane a message is below the highest one only counts as {@link PriorityLanes#agingNanos} of waiting time. A
+ * low priority message that waited long enough therefore overtakes newer messages of higher lanes and can not starve.
+ * Any number of threads may add messages, but only a single thread at a time may take or remove them.
+ */
+public class PriorityLanes {
+    /**
+     * Default time in milliseconds, that a message must wait longer than the head of the lane above it to be taken
+     * first
+     */
+    public static final long DEFAULT_AGING_MILLIS = 500;
+    /**
+     * Lanes from the highest to the lowest priority
+     */
+    private static final PriorityC[] ORDER = {PriorityC.HIGH, PriorityC.NORMAL, PriorityC.LOW};
+    /**
+     * Queued messages of every priority
+     */
+    private final EnumMap<PriorityC, ConcurrentLinkedDeque<MessageInfo>> lanes;
+    /**
+     * Number of messages queued in every lane
+     */
+    private final EnumMap<PriorityC, AtomicInteger> depths;
+    /**
+     * Waiting time in nanoseconds a single priority level is worth. 0 or less takes messages strictly by priority
+     */
+    private volatile long agingNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AGING_MILLIS);
+
+    /**
+     * Creates empty lanes, aged by {@link PriorityLanes#DEFAULT_AGING_MILLIS}
+     */
+    public PriorityLanes() {
+        this.lanes = new EnumMap<>(PriorityC.class);
+        this.depths = new EnumMap<>(PriorityC.class);
+        for (PriorityC priority : PriorityC.values()) {
+            this.lanes.put(priority, new ConcurrentLinkedDeque<>());
+            this.depths.put(priority, new AtomicInteger(0));
+        }
+    }
+
+    /**
+     * Sets the waiting time a single priority level is worth
+     * @param agingNanos Waiting time in nanoseconds, 0 or less to never let lower lanes overtake higher ones
+     */
+    public void setAgingNanos(long agingNanos) {
+        this.agingNanos = agingNanos;
+    }
+
+    /**
+     * Adds {@param mi} to the tail of the lane of its priority
+     * @param mi Message to be queued
+     */
+    public void offer(MessageInfo mi) {
+        PriorityC priority = mi.getPriority();
+        this.depths.get(priority).incrementAndGet();
+        this.lanes.get(priority).offer(mi);
+    }
+
+    /**
+     * Adds {@param mi} to the head of the lane of its priority, used for giving back a message that was taken but
+     * could not be worked on
+     * @param mi Message to be queued again
+     */
+    public void offerFirst(MessageInfo mi) {
+        PriorityC priority = mi.getPriority();
+        this.depths.get(priority).incrementAndGet();
+        this.lanes.get(priority).offerFirst(mi);
+    }
+
+    /**
+     * Takes the next message. Out of the heads of all lanes, the one that waited longest, counting
+     * {@link PriorityLanes#agingNanos} for every level of priority, is taken.
+     * @return Next message, null if all lanes are empty
+     */
+    public MessageInfo poll() {
+        long aging = this.agingNanos;
+        PriorityC next = null;
+        long nextRank = 0;
+        int level = ORDER.length;
+        for (PriorityC priority : ORDER) {
+            level--;
+            MessageInfo head = this.lanes.get(priority).peek();
+            if (head == null) continue;
+            if (aging <= 0) {
+                next = priority;
+                break;
+            }
+            long rank = head.getReceivedNanos() - level * aging;
+            if (next == null || rank - nextRank < 0) {
+                next = priority;
+                nextRank = rank;
+            }
+        }
+        if (next == null) return null;
+        return this.take(next, this.lanes.get(next).poll());
+    }
+
+    /**
+     * Takes the newest message of the lowest lane, that is not empty
+     * @return Newest message with the lowest priority, null if all lanes are empty
+     */
+    public MessageInfo pollLast() {
+        for (int i = ORDER.length - 1; i >= 0; i--) {
+            MessageInfo mi = this.lanes.get(ORDER[i]).pollLast();
+            if (mi != null) return this.take(ORDER[i], mi);
+        }
+        return null;
+    }
+
+    /**
+     * Removes {@param mi} from the lane of its priority. Used for unlinking messages that were claimed while queued,
+     * so no reference to them is left behind once they are reused. Searches the lane, which is only done for the few
+     * messages that expire while queued
+     * @param mi Message to be removed
+     * @return True, if the message was queued
+     */
+    public boolean remove(MessageInfo mi) {
+        PriorityC priority = mi.getPriority();
+        if (!this.lanes.get(priority).removeFirstOccurrence(mi)) return false;
+        this.depths.get(priority).decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Checks, whether there are no messages in any lane
+     * @return True, if all lanes are empty
+     */
+    public boolean isEmpty() {
+        for (PriorityC priority : ORDER) {
+            if (!this.lanes.get(priority).isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of messages queued in the lane of {@param priority}
+     * @param priority Priority of the lane
+     * @return Number of queued messages of the priority
+     */
+    public int size(PriorityC priority) {
+        return this.depths.get(priority).get();
+    }
+
+    /**
+     * Counts down the depth of the lane {@param mi} was taken from
+     * @param priority Lane the message was taken from
+     * @param mi Message taken from the lane, may be null
+     * @return {@param mi}
+     */
+    private MessageInfo take(PriorityC priority, MessageInfo mi) {
+        if (mi != null) this.depths.get(priority).decrementAndGet();
+        return mi;
+    }
+}
@@ -0,0 +1,17 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.BasicProperties;
+
+/**
+ * Listener that is informed by a {@link ReplyPublisher} about every reply it published
+ */
+public interface ReplyListener {
+    /**
+     * Called, after a reply to the request with properties {@param requestProps} was published
+     * @param requestProps Properties of the request that was answered
+     * @param body Serialized answer
+     * @param contentType Content type of {@param body}, null if none was set
+     * @param cacheable False for replies, that must not be repeated to later requests, like errors
+     */
+    void replied(BasicProperties requestProps, byte[] body, String contentType, boolean cacheable);
+}
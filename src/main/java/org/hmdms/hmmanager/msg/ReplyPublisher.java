@@ -0,0 +1,442 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BasicProperties;
+import org.hmdms.hmmanager.msg.codecs.MessageCodec;
+import org.hmdms.hmmanager.msg.codecs.MessageCodecs;
+import org.hmdms.hmmanager.msg.transport.OutboundChannel;
+import org.hmdms.hmmanager.msg.transport.Transport;
+import org.hmdms.hmmanager.utils.LoggingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes replies to rpc requests over a pool of long-lived outbound channels of a {@link Transport}. Channels are
+ * borrowed for a single publish and given back to the pool
+ * afterwards, so no connection or channel has to be opened per reply. Many replies at once, like the answers to
+ * timed out requests, are published in a single batch on one channel.
+ * Optionally, publisher confirms are enabled on all channels and awaited in batches.
+ */
+public class ReplyPublisher {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ReplyPublisher.class);
+    /**
+     * Time in milliseconds to wait for a free channel or for outstanding publisher confirms
+     */
+    private static final long TIMEOUT_MILLIS = 5000;
+    /**
+     * Transport the channels are opened on
+     */
+    private final Transport transport;
+    /**
+     * Maximum number of channels in the pool
+     */
+    private final int poolSize;
+    /**
+     * True, if publisher confirms should be used
+     */
+    private final boolean confirms;
+    /**
+     * Number of unconfirmed publishes on a channel after which the confirms are awaited
+     */
+    private final int confirmBatchSize;
+    /**
+     * All channels that are currently not in use
+     */
+    private final ArrayBlockingQueue<PooledChannel> idle;
+    /**
+     * Number of channels that are currently open, borrowed or idle
+     */
+    private final AtomicInteger openChannels = new AtomicInteger(0);
+    /**
+     * Informed about every published reply, may be null
+     */
+    private volatile ReplyListener listener;
+
+    /**
+     * A channel in the pool and the number of publishes on it, that have not been confirmed yet
+     */
+    private static class PooledChannel {
+        /**
+         * The pooled channel
+         */
+        private final OutboundChannel channel;
+        /**
+         * Number of publishes since confirms were last awaited
+         */
+        private int unconfirmed = 0;
+
+        /**
+         * Wraps {@param channel}
+         * @param channel Channel to be pooled
+         */
+        private PooledChannel(OutboundChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A single reply, that is published as part of a batch
+     */
+    public static class Reply {
+        /**
+         * Properties of the request that is answered
+         */
+        private final BasicProperties requestProps;
+        /**
+         * Serialized answer
+         */
+        private final byte[] body;
+        /**
+         * Content type of {@link Reply#body}, null if none is set
+         */
+        private final String contentType;
+        /**
+         * False, if the reply must not be repeated to later requests
+         */
+        private final boolean cacheable;
+
+        /**
+         * Creates a new reply, that may be repeated to later requests
+         * @param requestProps Properties of the request that is answered
+         * @param body Serialized answer
+         * @param contentType Content type of {@param body}, null to not set one
+         */
+        public Reply(BasicProperties requestProps, byte[] body, String contentType) {
+            this(requestProps, body, contentType, true);
+        }
+
+        /**
+         * Creates a new reply
+         * @param requestProps Properties of the request that is answered
+         * @param body Serialized answer
+         * @param contentType Content type of {@param body}, null to not set one
+         * @param cacheable False, if the reply must not be repeated to later requests, like errors
+         */
+        public Reply(BasicProperties requestProps, byte[] body, String contentType, boolean cacheable) {
+            this.requestProps = requestProps;
+            this.body = body;
+            this.contentType = contentType;
+            this.cacheable = cacheable;
+        }
+
+        /**
+         * Creates a reply, that answers the request with properties {@param requestProps} with {@param answer},
+         * serialized in the format of the request. {@link ErrorReply} answers are not cacheable
+         * @param requestProps Properties of the request that is answered
+         * @param answer Object the requester should receive
+         * @return Reply containing the serialized answer
+         * @throws IOException When {@param answer} could not be serialized
+         */
+        public static Reply encode(BasicProperties requestProps, Serializable answer) throws IOException {
+            MessageCodec codec = MessageCodecs.forContentType(
+                    requestProps == null ? null : requestProps.getContentType()
+            );
+            return new Reply(
+                    requestProps, codec.write(answer), codec.getContentType(), !(answer instanceof ErrorReply)
+            );
+        }
+
+        /**
+         * Returns the properties of the request that is answered
+         * @return Properties of the request
+         */
+        public BasicProperties getRequestProps() {
+            return requestProps;
+        }
+
+        /**
+         * Returns the serialized answer
+         * @return Body of the reply
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the content type of the serialized answer
+         * @return Content type of the body, null if none is set
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Checks, whether the reply may be repeated to later requests
+         * @return False for replies like errors, that are only meant for the request they answer
+         */
+        public boolean isCacheable() {
+            return cacheable;
+        }
+    }
+
+    /**
+     * Creates a new reply publisher. No channel is opened until the first reply is published.
+     * @param transport Transport the replies are published with
+     * @param poolSize Maximum number of channels to keep open
+     * @param confirms True, if publisher confirms should be used
+     * @param confirmBatchSize Number of publishes per channel after which outstanding confirms are awaited
+     * @throws IllegalArgumentException When no transport or a pool size smaller than 1 is given
+     */
+    public ReplyPublisher(Transport transport, int poolSize, boolean confirms, int confirmBatchSize)
+            throws IllegalArgumentException {
+        if (transport == null) throw new IllegalArgumentException("No transport given");
+        if (poolSize < 1) throw new IllegalArgumentException("Pool size must be at least 1");
+
+        this.transport = transport;
+        this.poolSize = poolSize;
+        this.confirms = confirms;
+        this.confirmBatchSize = Math.max(1, confirmBatchSize);
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Publishes {@param body} to the queue given in the replyTo property of {@param requestProps}, using the
+     * correlation id of the request. If publishing fails because the channel or connection broke, it is retried
+     * once on a fresh channel.
+     * @param requestProps Properties of the request that is answered
+     * @param body Serialized answer
+     * @return True, if the reply was published
+     */
+    public boolean reply(BasicProperties requestProps, byte[] body) {
+        return this.reply(requestProps, body, null);
+    }
+
+    /**
+     * Publishes {@param body} to the queue given in the replyTo property of {@param requestProps}, using the
+     * correlation id of the request and {@param contentType} as content type of the reply. If publishing fails
+     * because the channel or connection broke, it is retried once on a fresh channel.
+     * @param requestProps Properties of the request that is answered
+     * @param body Serialized answer
+     * @param contentType Content type of {@param body}, null to not set one
+     * @return True, if the reply was published
+     */
+    public boolean reply(BasicProperties requestProps, byte[] body, String contentType) {
+        return this.reply(requestProps, body, contentType, true);
+    }
+
+    /**
+     * Publishes {@param body} like {@link ReplyPublisher#reply(BasicProperties, byte[], String)} and tells the
+     * listener, whether the reply may be repeated to later requests. Only a publish that failed itself is retried. If
+     * waiting for the publisher confirms fails afterwards, the reply may have reached the queue already, so it is not
+     * published again and the requester never gets two replies with the same correlation id.
+     * @param requestProps Properties of the request that is answered
+     * @param body Serialized answer
+     * @param contentType Content type of {@param body}, null to not set one
+     * @param cacheable False, if the reply must not be repeated to later requests, like errors
+     * @return True, if the reply was published
+     */
+    public boolean reply(BasicProperties requestProps, byte[] body, String contentType, boolean cacheable) {
+        if (!hasReplyQueue(requestProps)) {
+            logger.info("Request has no reply queue, cannot answer it");
+            return false;
+        }
+        AMQP.BasicProperties replyProps = replyProps(requestProps, contentType);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            PooledChannel pc = null;
+            try {
+                pc = this.borrow();
+                pc.channel.publish(requestProps.getReplyTo(), replyProps, body);
+            } catch (Exception ex) {
+                LoggingUtils.logException(ex, logger, "info", "%s occurred while publishing reply: %s");
+                if (pc != null) this.discard(pc);
+                continue;
+            }
+
+            try {
+                if (this.confirms && ++pc.unconfirmed >= this.confirmBatchSize) {
+                    pc.channel.waitForConfirms(TIMEOUT_MILLIS);
+                    pc.unconfirmed = 0;
+                }
+                this.release(pc);
+            } catch (Exception ex) {
+                LoggingUtils.logException(
+                        ex,
+                        logger,
+                        "warn",
+                        "%s occurred while waiting for confirms, replies are not published again: %s"
+                );
+                this.discard(pc);
+            }
+            this.replied(requestProps, body, contentType, cacheable);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Publishes all {@param replies} in a single batch on one channel. With publisher confirms, the confirms are
+     * awaited once for the whole batch. If the channel or connection breaks, the replies that were not published yet
+     * are retried once on a fresh channel. Replies that were published already are not published again, even if
+     * waiting for their confirms fails. Replies to requests without a reply queue are skipped.
+     * @param replies Replies to be published
+     * @return Number of replies that were published
+     */
+    public int replyAll(List<Reply> replies) {
+        int next = 0;
+        int published = 0;
+        for (int attempt = 0; attempt < 2 && next < replies.size(); attempt++) {
+            PooledChannel pc = null;
+            try {
+                pc = this.borrow();
+                for (; next < replies.size(); next++) {
+                    Reply r = replies.get(next);
+                    if (!hasReplyQueue(r.requestProps)) {
+                        logger.info("Request has no reply queue, cannot answer it");
+                        continue;
+                    }
+                    pc.channel.publish(
+                            r.requestProps.getReplyTo(), replyProps(r.requestProps, r.contentType), r.body
+                    );
+                    this.replied(r.requestProps, r.body, r.contentType, r.cacheable);
+                    published++;
+                }
+                if (this.confirms) {
+                    pc.channel.waitForConfirms(TIMEOUT_MILLIS);
+                    pc.unconfirmed = 0;
+                }
+                this.release(pc);
+            } catch (Exception ex) {
+                LoggingUtils.logException(ex, logger, "info", "%s occurred while publishing batch of replies: %s");
+                if (pc != null) this.discard(pc);
+            }
+        }
+        logger.debug("Published {} of {} replies in a batch", published, replies.size());
+        return published;
+    }
+
+    /**
+     * Sets the listener that is informed about every published reply
+     * @param listener Listener, usually the deduplication of the coordinator, null to remove it
+     */
+    public void setListener(ReplyListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Informs {@link ReplyPublisher#listener} about a published reply
+     * @param requestProps Properties of the request that was answered
+     * @param body Serialized answer
+     * @param contentType Content type of {@param body}
+     * @param cacheable False, if the reply must not be repeated to later requests
+     */
+    private void replied(BasicProperties requestProps, byte[] body, String contentType, boolean cacheable) {
+        ReplyListener l = this.listener;
+        if (l == null) return;
+        try {
+            l.replied(requestProps, body, contentType, cacheable);
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, logger, "info", "%s occurred while informing reply listener: %s");
+        }
+    }
+
+    /**
+     * Checks, whether the request with properties {@param requestProps} can be answered
+     * @param requestProps Properties of the request
+     * @return True, if the request has a reply queue
+     */
+    private static boolean hasReplyQueue(BasicProperties requestProps) {
+        return requestProps != null && requestProps.getReplyTo() != null && !requestProps.getReplyTo().isEmpty();
+    }
+
+    /**
+     * Builds the properties of the reply to the request with properties {@param requestProps}
+     * @param requestProps Properties of the request that is answered
+     * @param contentType Content type of the reply, null to not set one
+     * @return Properties carrying the correlation id of the request
+     */
+    private static AMQP.BasicProperties replyProps(BasicProperties requestProps, String contentType) {
+        return new AMQP.BasicProperties
+                .Builder()
+                .correlationId(requestProps.getCorrelationId())
+                .contentType(contentType)
+                .build();
+    }
+
+    /**
+     * Waits for all outstanding publisher confirms and closes all channels. The transport is left open.
+     */
+    public void close() {
+        PooledChannel pc;
+        while ((pc = this.idle.poll()) != null) {
+            try {
+                if (this.confirms && pc.unconfirmed > 0) pc.channel.waitForConfirms(TIMEOUT_MILLIS);
+            } catch (Exception ex) {
+                LoggingUtils.logException(ex, logger, "info", "%s occurred while waiting for confirms: %s");
+            }
+            this.discard(pc);
+        }
+    }
+
+    /**
+     * Takes an idle channel from the pool. If there is none and the pool is not full yet, a new channel is opened,
+     * otherwise waits for a channel to be given back.
+     * @return Channel to publish on
+     * @throws IOException When a new channel could not be created or no channel became free in time
+     */
+    private PooledChannel borrow() throws IOException {
+        PooledChannel pc = this.idle.poll();
+        if (pc != null) return pc;
+
+        if (this.openChannels.incrementAndGet() <= this.poolSize) {
+            try {
+                return this.createChannel();
+            } catch (Exception ex) {
+                this.openChannels.decrementAndGet();
+                throw ex;
+            }
+        }
+        this.openChannels.decrementAndGet();
+
+        try {
+            pc = this.idle.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a reply channel", ex);
+        }
+        if (pc == null) throw new IOException("No reply channel became available");
+        return pc;
+    }
+
+    /**
+     * Gives {@param pc} back to the pool, or discards it, if it was closed in the meantime
+     * @param pc Channel to give back
+     */
+    private void release(PooledChannel pc) {
+        if (!pc.channel.isOpen() || !this.idle.offer(pc)) this.discard(pc);
+    }
+
+    /**
+     * Closes {@param pc} and removes it from the pool
+     * @param pc Channel to discard
+     */
+    private void discard(PooledChannel pc) {
+        this.openChannels.decrementAndGet();
+        try {
+            if (pc.channel.isOpen()) pc.channel.close();
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, logger, "debug", "%s occurred while closing reply channel: %s");
+        }
+    }
+
+    /**
+     * Opens a new channel on {@link ReplyPublisher#transport}
+     * @return The new channel
+     * @throws IOException When the channel could not be opened
+     */
+    private PooledChannel createChannel() throws IOException {
+        OutboundChannel channel = this.transport.openOutbound(this.confirms);
+        logger.debug("Opened new reply channel");
+        return new PooledChannel(channel);
+    }
+}
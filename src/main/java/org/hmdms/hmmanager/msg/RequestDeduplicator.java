@@ -0,0 +1,298 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.BasicProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collapses requests, that are received more than once, e.g. because the message queue redelivered them or a
+ * client retried after a timeout. Requests are identified by their reply queue and correlation id.
+ * While a request is in flight, repeats of it are attached to it and not worked on again, as the reply to the first
+ * one reaches the same reply queue with the same correlation id. After a request was answered successfully, its reply
+ * is kept for a short time, so repeats are answered from memory. Error replies are never kept.
+ * Requests without reply queue or correlation id are never deduplicated.
+ */
+public class RequestDeduplicator implements ReplyListener {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RequestDeduplicator.class);
+
+    /**
+     * Outcome of registering a request
+     */
+    public enum Outcome {
+        /**
+         * The request is not known, it has to be worked on
+         */
+        NEW,
+        /**
+         * The same request is already in flight, the request was attached to it and must not be worked on
+         */
+        DUPLICATE,
+        /**
+         * The same request was answered recently, the request was answered from memory and must not be worked on
+         */
+        ANSWERED
+    }
+
+    /**
+     * Delivery of a repeat, that was attached to a request in flight
+     */
+    public static class Duplicate {
+        /**
+         * Index of the consumer channel the repeat was received on
+         */
+        private final int consumer;
+        /**
+         * Delivery tag of the repeat on its consumer channel
+         */
+        private final long deliveryTag;
+
+        /**
+         * Creates a new duplicate
+         * @param consumer Index of the consumer channel the repeat was received on
+         * @param deliveryTag Delivery tag of the repeat
+         */
+        private Duplicate(int consumer, long deliveryTag) {
+            this.consumer = consumer;
+            this.deliveryTag = deliveryTag;
+        }
+
+        /**
+         * Returns the index of the consumer channel the repeat was received on
+         * @return Index of the consumer channel
+         */
+        public int getConsumer() {
+            return consumer;
+        }
+
+        /**
+         * Returns the delivery tag of the repeat on its consumer channel
+         * @return Delivery tag of the repeat
+         */
+        public long getDeliveryTag() {
+            return deliveryTag;
+        }
+    }
+
+    /**
+     * A request in flight and the repeats attached to it
+     */
+    private static class InFlight {
+        /**
+         * Id of the message that is worked on
+         */
+        private final long messageId;
+        /**
+         * Deliveries of all repeats attached to the request
+         */
+        private final ArrayList<Duplicate> duplicates = new ArrayList<>();
+        /**
+         * Reply that was published for the request, null if it was not answered yet
+         */
+        private ReplyPublisher.Reply reply;
+        /**
+         * True, once the request was completed and no more repeats may be attached
+         */
+        private boolean closed = false;
+
+        /**
+         * Creates an entry for the message with id {@param messageId}
+         * @param messageId Id of the message that is worked on
+         */
+        private InFlight(long messageId) {
+            this.messageId = messageId;
+        }
+    }
+
+    /**
+     * A recently answered request
+     */
+    private static class Answered {
+        /**
+         * Reply that was published for the request
+         */
+        private final ReplyPublisher.Reply reply;
+        /**
+         * {@link System#nanoTime()} after which the reply is not used anymore
+         */
+        private final long expiresNanos;
+
+        /**
+         * Creates a new cache entry
+         * @param reply Reply that was published for the request
+         * @param expiresNanos Time after which the reply is not used anymore
+         */
+        private Answered(ReplyPublisher.Reply reply, long expiresNanos) {
+            this.reply = reply;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * All requests currently in flight, by reply queue and correlation id
+     */
+    private final ConcurrentHashMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    /**
+     * Replies to recently answered requests, by reply queue and correlation id, oldest first. Guarded by itself
+     */
+    private final LinkedHashMap<String, Answered> answered;
+    /**
+     * Publisher used for answering repeats from memory
+     */
+    private final ReplyPublisher replyPublisher;
+    /**
+     * Time in nanoseconds a reply is kept for answering repeats
+     */
+    private final long ttlNanos;
+
+    /**
+     * Creates a new deduplication and registers it as listener of {@param replyPublisher}
+     * @param replyPublisher Publisher all replies are published with
+     * @param ttlNanos Time in nanoseconds a reply is kept for answering repeats, 0 to not keep replies
+     * @param cacheSize Maximum number of replies kept
+     * @throws IllegalArgumentException When no publisher or a negative ttl or cache size is given
+     */
+    public RequestDeduplicator(ReplyPublisher replyPublisher, long ttlNanos, int cacheSize)
+            throws IllegalArgumentException {
+        if (replyPublisher == null) throw new IllegalArgumentException("No reply publisher given");
+        if (ttlNanos < 0 || cacheSize < 0) throw new IllegalArgumentException("Ttl and cache size must not be negative");
+        this.replyPublisher = replyPublisher;
+        this.ttlNanos = ttlNanos;
+        this.answered = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Answered> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+        replyPublisher.setListener(this);
+    }
+
+    /**
+     * Registers {@param mi} as in flight, unless the same request is already in flight or was answered recently.
+     * Repeats of a request in flight are attached to it, repeats of an answered request are answered right away.
+     * @param mi Message that was received
+     * @return What has to be done with the message
+     */
+    public Outcome register(MessageInfo mi) {
+        String key = keyOf(mi.getMessageProps());
+        if (key == null) return Outcome.NEW;
+
+        while (true) {
+            ReplyPublisher.Reply reply = this.answeredReply(key);
+            if (reply != null) {
+                logger.debug("Answering repeated request {} from memory", mi.getId());
+                this.replyPublisher.reply(mi.getMessageProps(), reply.getBody(), reply.getContentType());
+                return Outcome.ANSWERED;
+            }
+
+            InFlight entry = this.inFlight.putIfAbsent(key, new InFlight(mi.getId()));
+            if (entry == null) return Outcome.NEW;
+            synchronized (entry) {
+                if (!entry.closed) {
+                    entry.duplicates.add(new Duplicate(mi.getConsumer(), mi.getDeliveryTag()));
+                    logger.debug("Request {} is a repeat of message {}", mi.getId(), entry.messageId);
+                    return Outcome.DUPLICATE;
+                }
+            }
+            // The request is being completed right now, its reply is about to be kept or it is removed
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Completes the request of {@param mi}. Its reply is kept for answering repeats, if {@param keepReply} is true
+     * and a reply was published.
+     * @param mi Message that was completed
+     * @param keepReply True, if repeats may be answered with the reply. False for replies, that should not be
+     *                  repeated, like timeouts
+     * @return Deliveries of all repeats attached to the request
+     */
+    public ArrayList<Duplicate> completed(MessageInfo mi, boolean keepReply) {
+        String key = keyOf(mi.getMessageProps());
+        ArrayList<Duplicate> duplicates = new ArrayList<>();
+        if (key == null) return duplicates;
+        InFlight entry = this.inFlight.get(key);
+        if (entry == null || entry.messageId != mi.getId()) return duplicates;
+
+        synchronized (entry) {
+            entry.closed = true;
+            duplicates.addAll(entry.duplicates);
+        }
+        if (keepReply && entry.reply != null && this.ttlNanos > 0) {
+            synchronized (this.answered) {
+                this.answered.put(key, new Answered(entry.reply, System.nanoTime() + this.ttlNanos));
+            }
+        }
+        this.inFlight.remove(key, entry);
+        return duplicates;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Remembers the reply for the request in flight, so it can be kept once the request is completed. Replies, that
+     * are not cacheable, are never kept, so a repeat of a request that failed is worked on again.
+     * @param requestProps Properties of the request that was answered
+     * @param body Serialized answer
+     * @param contentType Content type of {@param body}, null if none was set
+     * @param cacheable False for replies, that must not be repeated to later requests, like errors
+     */
+    @Override
+    public void replied(BasicProperties requestProps, byte[] body, String contentType, boolean cacheable) {
+        String key = keyOf(requestProps);
+        if (key == null) return;
+        InFlight entry = this.inFlight.get(key);
+        if (entry == null) return;
+        synchronized (entry) {
+            if (!entry.closed) {
+                entry.reply = cacheable ? new ReplyPublisher.Reply(requestProps, body, contentType) : null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests currently in flight
+     * @return Number of deduplicated requests in flight
+     */
+    public int getInFlightCount() {
+        return this.inFlight.size();
+    }
+
+    /**
+     * Returns the kept reply for the request with key {@param key}. Expired replies are dropped on the way
+     * @param key Reply queue and correlation id of the request
+     * @return Kept reply, null if there is none
+     */
+    private ReplyPublisher.Reply answeredReply(String key) {
+        synchronized (this.answered) {
+            if (this.answered.isEmpty()) return null;
+            long now = System.nanoTime();
+            // Replies are kept in the order they were answered, so the expired ones are at the front
+            var it = this.answered.values().iterator();
+            while (it.hasNext() && now - it.next().expiresNanos >= 0) {
+                it.remove();
+            }
+            Answered a = this.answered.get(key);
+            return a == null ? null : a.reply;
+        }
+    }
+
+    /**
+     * Builds the key of the request with properties {@param props}
+     * @param props Properties of the request
+     * @return Reply queue and correlation id of the request, null if either is missing
+     */
+    private static String keyOf(BasicProperties props) {
+        if (props == null) return null;
+        String replyTo = props.getReplyTo();
+        String correlationId = props.getCorrelationId();
+        if (replyTo == null || replyTo.isEmpty() || correlationId == null || correlationId.isEmpty()) return null;
+        return replyTo + '\n' + correlationId;
+    }
+}
@@ -0,0 +1,181 @@
+package org.hmdms.hmmanager.msg;
+
+import org.hmdms.hmmanager.msg.subscribers.Subscriber;
+
+import java.util.Properties;
+
+/**
+ * Resources reserved for a single topic in every broker, so a burst of messages of one topic cannot starve the
+ * others. Each topic has its own number of subscribers per broker, its own bound on queued messages and its own kind
+ * of threads.
+ * Values are read from the keys {@code msg.topics.<TOPIC>.*} and default to the settings shared by all topics.
+ */
+public class TopicConfig {
+    /**
+     * Topic the configuration belongs to
+     */
+    private final TopicC topic;
+    /**
+     * Number of subscribers of the topic per broker
+     */
+    private final int workers;
+    /**
+     * Maximum number of messages of the topic, that may wait in the queue of a single broker
+     */
+    private final int queueCapacity;
+    /**
+     * Number of messages a single subscriber of the topic holds at once
+     */
+    private final int subscriberCapacity;
+    /**
+     * True, if subscribers of the topic work on every message in its own virtual thread
+     */
+    private final boolean virtualThreads;
+    /**
+     * Maximum number of messages of the topic worked on at once in virtual threads, over all brokers
+     */
+    private final int maxConcurrency;
+    /**
+     * Maximum number of messages a subscriber of the topic takes from its inbox at once
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Creates a new topic configuration
+     * @param topic Topic the configuration belongs to
+     * @param workers Number of subscribers of the topic per broker
+     * @param queueCapacity Maximum number of queued messages of the topic per broker
+     * @param subscriberCapacity Number of messages a single subscriber holds at once
+     * @param virtualThreads True, if messages are worked on in virtual threads
+     * @param maxConcurrency Maximum number of messages worked on at once in virtual threads
+     * @param maxBatchSize Maximum number of messages a subscriber takes from its inbox at once
+     * @throws IllegalArgumentException When no topic or a value smaller than 1 is given
+     */
+    public TopicConfig(
+            TopicC topic,
+            int workers,
+            int queueCapacity,
+            int subscriberCapacity,
+            boolean virtualThreads,
+            int maxConcurrency,
+            int maxBatchSize
+    ) throws IllegalArgumentException {
+        if (topic == null) throw new IllegalArgumentException("No topic given");
+        if (workers < 1 || queueCapacity < 1 || subscriberCapacity < 1 || maxConcurrency < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Configuration of topic " + topic + " must only contain values above 0");
+        }
+        this.topic = topic;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.subscriberCapacity = subscriberCapacity;
+        this.virtualThreads = virtualThreads;
+        this.maxConcurrency = maxConcurrency;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Reads the configuration of {@param topic} from {@param prop}. Keys that are not set for the topic fall back to
+     * the settings shared by all topics.
+     * @param prop Properties read from config.properties
+     * @param topic Topic to read the configuration for
+     * @return Configuration of {@param topic}
+     * @throws IllegalArgumentException When a value is smaller than 1 or not a number
+     */
+    public static TopicConfig fromProperties(Properties prop, TopicC topic) throws IllegalArgumentException {
+        String prefix = "msg.topics." + topic.name() + ".";
+        int brokerCapacity = Integer.parseInt(
+                prop.getProperty("msg.broker.queueCapacity", String.valueOf(Broker.DEFAULT_QUEUE_CAPACITY))
+        );
+        String threads = prop.getProperty(prefix + "threads", prop.getProperty("msg.subscribers.threads", "platform"));
+
+        return new TopicConfig(
+                topic,
+                Integer.parseInt(prop.getProperty(prefix + "workers", "1")),
+                Math.min(brokerCapacity, Integer.parseInt(
+                        prop.getProperty(prefix + "queueCapacity", String.valueOf(brokerCapacity))
+                )),
+                Integer.parseInt(prop.getProperty(
+                        prefix + "capacity",
+                        prop.getProperty("msg.subscribers.capacity", String.valueOf(Subscriber.DEFAULT_CAPACITY))
+                )),
+                "virtual".equalsIgnoreCase(threads),
+                Integer.parseInt(prop.getProperty(
+                        prefix + "virtual.maxConcurrency",
+                        prop.getProperty("msg.subscribers.virtual.maxConcurrency", "64")
+                )),
+                Integer.parseInt(prop.getProperty(
+                        prefix + "batchSize", prop.getProperty("msg.subscribers.batchSize", "1")
+                ))
+        );
+    }
+
+    /**
+     * Returns the topic the configuration belongs to
+     * @return Topic of the configuration
+     */
+    public TopicC getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the number of subscribers of the topic per broker
+     * @return Number of subscribers per broker
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the maximum number of messages of the topic, that may wait in the queue of a single broker
+     * @return Queue capacity of the topic per broker
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Returns the number of messages a single subscriber of the topic holds at once
+     * @return Capacity of a single subscriber
+     */
+    public int getSubscriberCapacity() {
+        return subscriberCapacity;
+    }
+
+    /**
+     * Checks, whether subscribers of the topic work on every message in its own virtual thread
+     * @return True, if virtual threads are used
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Returns the maximum number of messages of the topic worked on at once in virtual threads
+     * @return Maximum number of concurrently running messages
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Returns the maximum number of messages a subscriber of the topic takes from its inbox at once
+     * @return Maximum batch size, 1 if messages are not batched
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Builds String representation of the configuration and returns it
+     * @return String representation of the configuration
+     */
+    @Override
+    public String toString() {
+        return String.format(
+                "%s[workers=%d, queueCapacity=%d, subscriberCapacity=%d, threads=%s, maxConcurrency=%d, "
+                        + "maxBatchSize=%d]",
+                this.topic, this.workers, this.queueCapacity, this.subscriberCapacity,
+                this.virtualThreads ? "virtual" : "platform", this.maxConcurrency, this.maxBatchSize
+        );
+    }
+}
@@ -0,0 +1,71 @@
+package org.hmdms.hmmanager.msg.codecs;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.hmdms.hmmanager.utils.JsonMappers;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codec for a binary format supported by a Jackson {@link JsonFactory}, like Smile or CBOR
+ */
+public class JacksonCodec implements MessageCodec {
+    /**
+     * Content type of the format
+     */
+    private final String contentType;
+    /**
+     * Mapper for the format
+     */
+    private final ObjectMapper mapper;
+    /**
+     * Reader for decoding bodies into trees
+     */
+    private final ObjectReader treeReader;
+    /**
+     * Writers of all types that were encoded so far
+     */
+    private final ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a codec for the format created by {@param factory}
+     * @param contentType Content type of the format
+     * @param factory Factory for parsers and generators of the format
+     * @throws IllegalArgumentException When no content type or factory is given
+     */
+    public JacksonCodec(String contentType, JsonFactory factory) throws IllegalArgumentException {
+        if (contentType == null || factory == null) throw new IllegalArgumentException("No content type or factory given");
+        this.contentType = contentType;
+        this.mapper = JsonMappers.createMapper(factory);
+        this.treeReader = this.mapper.reader();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonNode readTree(byte[] body) throws IOException {
+        return this.treeReader.readTree(body);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] write(Object value) throws IOException {
+        if (value == null) throw new IllegalArgumentException("No value given");
+        return this.writers.computeIfAbsent(value.getClass(), this.mapper::writerFor).writeValueAsBytes(value);
+    }
+}
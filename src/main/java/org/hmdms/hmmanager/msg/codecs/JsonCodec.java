@@ -0,0 +1,46 @@
+package org.hmdms.hmmanager.msg.codecs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.hmdms.hmmanager.utils.JsonMappers;
+
+import java.io.IOException;
+
+/**
+ * Codec for UTF-8 encoded json, using the shared readers and writers of {@link JsonMappers}
+ */
+public class JsonCodec implements MessageCodec {
+    /**
+     * Content type of json
+     */
+    public static final String CONTENT_TYPE = "application/json";
+
+    /**
+     * Default constructor
+     */
+    public JsonCodec() { }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonNode readTree(byte[] body) throws IOException {
+        return JsonMappers.TREE_READER.readTree(body);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] write(Object value) throws IOException {
+        if (value == null) throw new IllegalArgumentException("No value given");
+        return JsonMappers.writerFor(value.getClass()).writeValueAsBytes(value);
+    }
+}
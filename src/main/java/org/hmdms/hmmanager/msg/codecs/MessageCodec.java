@@ -0,0 +1,33 @@
+package org.hmdms.hmmanager.msg.codecs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes message bodies in a single format. All formats are read into the same {@link JsonNode} trees,
+ * so everything working on a message is independent of the format it was sent in.
+ */
+public interface MessageCodec {
+    /**
+     * Returns the AMQP content type of the format
+     * @return Content type set on messages in this format
+     */
+    String getContentType();
+
+    /**
+     * Decodes {@param body} into a tree
+     * @param body Encoded message body
+     * @return Decoded tree
+     * @throws IOException When {@param body} is not valid in this format
+     */
+    JsonNode readTree(byte[] body) throws IOException;
+
+    /**
+     * Encodes {@param value}
+     * @param value Object to be encoded
+     * @return Encoded object
+     * @throws IOException When {@param value} could not be encoded
+     */
+    byte[] write(Object value) throws IOException;
+}
@@ -0,0 +1,59 @@
+package org.hmdms.hmmanager.msg.codecs;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Selects the codec for a message by its AMQP content type. Messages without or with an unknown content type are
+ * treated as json.
+ */
+public abstract class MessageCodecs {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(MessageCodecs.class);
+    /**
+     * Codec for json, the default format
+     */
+    public static final MessageCodec JSON = new JsonCodec();
+    /**
+     * Codec for Smile, the binary json format of Jackson
+     */
+    public static final MessageCodec SMILE = new JacksonCodec("application/x-jackson-smile", new SmileFactory());
+    /**
+     * Codec for CBOR
+     */
+    public static final MessageCodec CBOR = new JacksonCodec("application/cbor", new CBORFactory());
+
+    /**
+     * Default constructor
+     */
+    public MessageCodecs() { }
+
+    /**
+     * Returns the codec for {@param contentType}. Parameters like a charset are ignored.
+     * @param contentType Content type of the message, may be null
+     * @return Codec for the content type, {@link MessageCodecs#JSON} if it is not given or not supported
+     */
+    public static MessageCodec forContentType(String contentType) {
+        if (contentType == null || contentType.isEmpty()) return JSON;
+        int params = contentType.indexOf(';');
+        String type = (params < 0 ? contentType : contentType.substring(0, params)).trim().toLowerCase(Locale.ROOT);
+        switch (type) {
+            case JsonCodec.CONTENT_TYPE:
+                return JSON;
+            case "application/x-jackson-smile":
+            case "application/smile":
+                return SMILE;
+            case "application/cbor":
+                return CBOR;
+            default:
+                logger.debug("Unsupported content type {}, treating message as json", contentType);
+                return JSON;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Contains the codecs that encode and decode message bodies in the formats supported on the message queue
+ */
+package org.hmdms.hmmanager.msg.codecs;
\ No newline at end of file
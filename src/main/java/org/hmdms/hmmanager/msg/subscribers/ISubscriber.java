@@ -28,4 +28,17 @@ public interface ISubscriber extends Runnable {
      * @param state State of the subscriber
      */
     void setState(StateC state);
+
+    /**
+     * Returns the number of messages the subscriber can currently take on
+     * @return Number of messages that can still be given to the subscriber
+     */
+    int remainingCapacity();
+
+    /**
+     * Sets a listener that is called, whenever the subscriber completed a message or is able to take on new
+     * messages again after having refused some
+     * @param listener Listener, usually the broker the subscriber subscribes to
+     */
+    void setListener(SubscriberListener listener);
 }
@@ -1,51 +1,365 @@
 package org.hmdms.hmmanager.msg.subscribers;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.rabbitmq.client.*;
+import com.rabbitmq.client.BasicProperties;
+import org.hmdms.hmmanager.msg.ErrorC;
+import org.hmdms.hmmanager.msg.ErrorReply;
 import org.hmdms.hmmanager.msg.MessageInfo;
+import org.hmdms.hmmanager.msg.PriorityLanes;
+import org.hmdms.hmmanager.msg.ReplyPublisher;
 import org.hmdms.hmmanager.msg.TopicC;
-import org.hmdms.hmmanager.sys.BlockingComponent;
+import org.hmdms.hmmanager.msg.codecs.MessageCodec;
+import org.hmdms.hmmanager.msg.codecs.MessageCodecs;
+import org.hmdms.hmmanager.sys.Component;
 import org.hmdms.hmmanager.sys.StateC;
 import org.hmdms.hmmanager.utils.LoggingUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Base Class for all message subscribers
+ * Base Class for all message subscribers.
+ * Messages given to the subscriber via {@link Subscriber#notify(ArrayList)} are put into an inbox with a lane per
+ * priority, see {@link PriorityLanes}. The subscribers thread parks while the inbox is empty and is woken up as soon as new messages arrive or the state changes, so an
+ * idle subscriber does not use any cpu time.
+ * By default, messages are worked on one after another in the subscribers own thread. When a {@link Semaphore} is
+ * set with {@link Subscriber#setVirtualExecution(Semaphore)}, every message is worked on in its own virtual thread
+ * instead, limited by the permits of the semaphore.
+ * Subscribers, that can work on several messages at once more cheaply than one after another, override
+ * {@link Subscriber#handleMessages(ArrayList)}. With a maximum batch size above 1, see
+ * {@link Subscriber#setMaxBatchSize(int)}, messages are then taken from the inbox in batches, that grow with the
+ * backlog of the subscriber.
  */
-public abstract class Subscriber extends BlockingComponent implements ISubscriber {
+public abstract class Subscriber extends Component implements ISubscriber {
+    /**
+     * Default number of messages a subscriber holds in its inbox
+     */
+    public static final int DEFAULT_CAPACITY = 100;
     /**
      * Logger
      */
     protected final Logger logger;
     /**
-     * All currentMessages this subscriber is working on
+     * All currentMessages this subscriber is working on, taken by priority
      */
-    protected final ArrayList<MessageInfo> currentMessages;
+    protected final PriorityLanes currentMessages;
     /**
      * Topic the Subscriber subscribes to
      */
     protected TopicC topic;
     /**
-     * Factory for creating connections to the rabbitmq service
+     * Publisher used for answering requests over pooled channels
+     */
+    private final ReplyPublisher replyPublisher;
+    /**
+     * Thread that executes {@link Subscriber#run()}. Is unparked whenever there is something to do.
+     */
+    private volatile Thread worker;
+    /**
+     * Number of messages in the inbox or currently being worked on
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
+    /**
+     * Maximum number of messages in {@link Subscriber#pending}
+     */
+    private volatile int capacity = DEFAULT_CAPACITY;
+    /**
+     * True, if messages had to be refused because the inbox was full
+     */
+    private volatile boolean saturated = false;
+    /**
+     * Informed about completed messages and about the subscriber being able to take on messages again after being
+     * saturated
+     */
+    private volatile SubscriberListener listener;
+    /**
+     * Permits for working on messages in virtual threads. Null, if messages are worked on in the subscribers own
+     * thread
+     */
+    private volatile Semaphore virtualPermits;
+    /**
+     * Maximum number of messages taken from the inbox at once
      */
-    private final ConnectionFactory connectionFactory;
+    private volatile int maxBatchSize = 1;
+    /**
+     * Batch reused by the subscribers own thread, while messages are not worked on in virtual threads
+     */
+    private final ArrayList<MessageInfo> batch = new ArrayList<>();
 
     /**
      * Default constructor
-     * @param lockIds Ids for locks the {@link BlockingComponent} should instantiate
-     * @param conn Connectionfactory the subscriber should use to connect to the RabbitMQ for answering requests
+     * @param replyPublisher Publisher the subscriber should use for answering requests
      */
-    public Subscriber(String[] lockIds, ConnectionFactory conn) {
-        super(lockIds);
+    public Subscriber(ReplyPublisher replyPublisher) {
+        super();
         this.logger = LoggerFactory.getLogger(this.getClass());
-        this.currentMessages = new ArrayList<>();
+        this.currentMessages = new PriorityLanes();
         this.state = StateC.INITIALIZED;
-        this.connectionFactory = conn;
+        this.replyPublisher = replyPublisher;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Messages are put into the inbox of the subscriber and the subscribers thread is woken up to work on them.
+     * @param mi Messages of which the subscriber should be notified
+     * @return True, if messages could be added to the inbox, false if the inbox does not have enough room left
+     */
+    @Override
+    public boolean notify(ArrayList<MessageInfo> mi) {
+        int current;
+        do {
+            current = this.pending.get();
+            if (current + mi.size() > this.capacity) {
+                this.saturated = true;
+                this.logger.trace("Inbox is full, refusing messages");
+                return false;
+            }
+        } while (!this.pending.compareAndSet(current, current + mi.size()));
+
+        this.logger.debug("Adding {} messages to the message queue", mi.size());
+        for (MessageInfo m : mi) {
+            this.currentMessages.offer(m);
+        }
+        LockSupport.unpark(this.worker);
+        return true;
+    }
+
+    /**
+     * Main logic of the subscriber.
+     * Takes messages from the inbox by priority, in batches as large as {@link Subscriber#batchSize(int, int, int)}
+     * allows, and calls {@link Subscriber#handleMessages(ArrayList)} with them, either directly or in a new virtual
+     * thread, depending on the execution mode. When the inbox is empty, the thread parks until it is woken up by
+     * {@link Subscriber#notify(ArrayList)} or {@link Subscriber#setState(StateC)}.
+     */
+    @Override
+    public void run() {
+        if (!this.state.equals(StateC.INITIALIZED) && !this.state.equals(StateC.STARTED)) {
+            this.logger.debug("Not running {} as the components state is {}", this, this.state);
+            return;
+        }
+
+        this.worker = Thread.currentThread();
+        this.state = StateC.WORKING;
+        while (this.state.equals(StateC.WORKING)) {
+            MessageInfo mi = this.currentMessages.poll();
+            if (mi == null) {
+                // Nothing to do, wait until new messages arrive or the state changes
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    this.logger.debug("Subscriber thread was interrupted, stopping");
+                    break;
+                }
+                continue;
+            }
+
+            Semaphore permits = this.virtualPermits;
+            if (permits == null) {
+                this.fillBatch(this.batch, mi, 1);
+                this.work(this.batch);
+                this.batch.clear();
+                continue;
+            }
+
+            // Run the batch in its own virtual thread, as soon as the topic has a free permit
+            ArrayList<MessageInfo> batch = new ArrayList<>();
+            this.fillBatch(batch, mi, Math.max(1, permits.availablePermits()));
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                this.logger.debug("Subscriber thread was interrupted while waiting for a permit, stopping");
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    this.currentMessages.offerFirst(batch.get(i));
+                }
+                break;
+            }
+            try {
+                Thread.ofVirtual().name(this.getClass().getSimpleName() + "-" + mi.getId()).start(() -> {
+                    try {
+                        this.work(batch);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (Exception ex) {
+                permits.release();
+                LoggingUtils.logException(ex, this.logger, "warn", "%s occurred while starting virtual thread: %s");
+                this.work(batch);
+            }
+        }
+        this.worker = null;
+    }
+
+    /**
+     * Adds {@param first} and as many further messages from the inbox to {@param batch}, as the current backlog
+     * calls for
+     * @param batch Batch to fill
+     * @param first Message already taken from the inbox
+     * @param workers Number of batches, that can be worked on at the same time
+     */
+    private void fillBatch(ArrayList<MessageInfo> batch, MessageInfo first, int workers) {
+        batch.add(first);
+        int size = batchSize(this.maxBatchSize, this.pending.get(), workers);
+        MessageInfo mi;
+        while (batch.size() < size && (mi = this.currentMessages.poll()) != null) {
+            batch.add(mi);
+        }
+    }
+
+    /**
+     * Computes the number of messages to take from the inbox at once. Under light load every message is worked on
+     * as soon as it arrives, the more messages wait, the larger the batches get, up to {@param maxBatchSize}. The
+     * backlog is split evenly between {@param workers}, so batching does not take away parallelism.
+     * @param maxBatchSize Maximum number of messages in a batch
+     * @param backlog Number of messages waiting in the inbox or being worked on
+     * @param workers Number of batches, that can be worked on at the same time
+     * @return Number of messages for the next batch, at least 1
+     */
+    public static int batchSize(int maxBatchSize, int backlog, int workers) {
+        if (maxBatchSize <= 1 || backlog <= 1) return 1;
+        int share = (backlog + Math.max(1, workers) - 1) / Math.max(1, workers);
+        return Math.max(1, Math.min(maxBatchSize, share));
+    }
+
+    /**
+     * Calls {@link Subscriber#handleMessages(ArrayList)} with all messages in {@param batch}, whose deadline has not
+     * passed yet, and informs the listener about every message afterwards. Messages whose deadline passed while they
+     * waited are rejected without being worked on.
+     * @param batch Messages to work on
+     */
+    private void work(ArrayList<MessageInfo> batch) {
+        long now = System.nanoTime();
+        ArrayList<MessageInfo> live = batch;
+        for (MessageInfo mi : batch) {
+            if (mi.isExpired(now)) {
+                live = new ArrayList<>(batch.size());
+                break;
+            }
+        }
+        if (live != batch) {
+            for (MessageInfo mi : batch) {
+                if (mi.isExpired(now)) {
+                    this.logger.info("Deadline of message {} passed before it was started, rejecting it", mi.getId());
+                } else {
+                    live.add(mi);
+                }
+            }
+        }
+
+        try {
+            if (!live.isEmpty()) this.handleMessages(live);
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, this.logger, "info", "%s occurred while handling message: %s");
+        } finally {
+            this.pending.addAndGet(-batch.size());
+        }
+
+        SubscriberListener l = this.listener;
+        if (l == null) return;
+        for (MessageInfo mi : batch) {
+            if (mi.isExpired(now)) l.messageExpired(this, mi);
+            else l.messageCompleted(this, mi);
+        }
+        // Let the broker know, that messages it could not hand over before can now be given to this subscriber
+        if (this.saturated) {
+            this.saturated = false;
+            l.capacityAvailable(this);
+        }
+    }
+
+    /**
+     * Works on a batch of messages from the inbox. Calls {@link Subscriber#handleMessage(MessageInfo)} for every
+     * message by default. Subscribers, that can work on several messages more cheaply at once, override this method.
+     * All messages of the batch count as completed once the method returns.
+     * @param batch Messages to work on, at least one
+     */
+    protected void handleMessages(ArrayList<MessageInfo> batch) {
+        for (MessageInfo mi : batch) {
+            try {
+                this.handleMessage(mi);
+            } catch (Exception ex) {
+                LoggingUtils.logException(ex, this.logger, "info", "%s occurred while handling message: %s");
+            }
+        }
+    }
+
+    /**
+     * Works on a single message from the inbox. Is called from the subscribers own thread or, in virtual execution
+     * mode, from a virtual thread dedicated to the message. Implementations must therefore be thread safe.
+     * @param mi Message to work on
+     */
+    protected abstract void handleMessage(MessageInfo mi);
+
+    /**
+     * {@inheritDoc}
+     * Wakes up the subscribers thread, so it notices the state change.
+     * @param state State of the subscriber
+     */
+    @Override
+    public void setState(StateC state) {
+        super.setState(state);
+        LockSupport.unpark(this.worker);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return Number of messages that can still be given to the subscriber
+     */
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, this.capacity - this.pending.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param listener Listener, usually the broker the subscriber subscribes to
+     */
+    @Override
+    public void setListener(SubscriberListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the maximum number of messages the subscriber holds at once
+     * @param capacity Maximum number of messages in the inbox
+     * @throws IllegalArgumentException When {@param capacity} is smaller than 1
+     */
+    public void setCapacity(int capacity) throws IllegalArgumentException {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the waiting time a single level of priority is worth in the inbox. A message overtakes messages one
+     * priority above it after waiting {@param agingNanos} longer.
+     * @param agingNanos Waiting time in nanoseconds, 0 or less to take messages strictly by priority
+     */
+    public void setPriorityAging(long agingNanos) {
+        this.currentMessages.setAgingNanos(agingNanos);
+    }
+
+    /**
+     * Switches the subscriber to working on every message in its own virtual thread. The number of messages worked
+     * on at the same time is limited by {@param permits}, which is usually shared by all subscribers of a topic.
+     * @param permits Permits for concurrently running messages or null, to work on messages one after another in
+     *                the subscribers own thread
+     */
+    public void setVirtualExecution(Semaphore permits) {
+        this.virtualPermits = permits;
+    }
+
+    /**
+     * Sets the maximum number of messages taken from the inbox at once. Only subscribers overriding
+     * {@link Subscriber#handleMessages(ArrayList)} profit from batches larger than 1.
+     * @param maxBatchSize Maximum number of messages in a batch
+     * @throws IllegalArgumentException When {@param maxBatchSize} is smaller than 1
+     */
+    public void setMaxBatchSize(int maxBatchSize) throws IllegalArgumentException {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+        this.maxBatchSize = maxBatchSize;
     }
 
     /**
@@ -67,30 +381,33 @@ public abstract class Subscriber extends BlockingComponent implements ISubscribe
 
     /**
      * Answers the request defined by {@param props}.
-     * Connects to the RabbitMQ Queue the requester opened and set in the replyTo property of {@param props}
-     * object. Serializes the {@param answerObj} and sends it over the opened channel to the queue
+     * Serializes the {@param answerObj} in the format of the request and publishes it to the queue the requester set
+     * in the replyTo property of {@param props} over a pooled channel of the {@link ReplyPublisher}.
      * @param props Message props of the original request message
      * @param answerObj Object that the requester should receive
      * @return True, if answering worked, false otherwise
      */
     protected boolean answerRequest(BasicProperties props, Serializable answerObj) {
-        try (Connection conn = this.connectionFactory.newConnection(); Channel channel = conn.createChannel()) {
-            AMQP.BasicProperties replyProps = new AMQP.BasicProperties
-                    .Builder()
-                    .correlationId(props.getCorrelationId())
-                    .build();
-
-            String jsonString = new ObjectMapper().writeValueAsString(answerObj);
-            channel.basicPublish(
-                    "",
-                    props.getReplyTo(),
-                    replyProps,
-                    jsonString.getBytes(StandardCharsets.UTF_8)
+        try {
+            MessageCodec codec = MessageCodecs.forContentType(props == null ? null : props.getContentType());
+            // Errors are only meant for the request they answer, a retry must be worked on again
+            return this.replyPublisher.reply(
+                    props, codec.write(answerObj), codec.getContentType(), !(answerObj instanceof ErrorReply)
             );
-            return true;
         } catch (Exception ex) {
             LoggingUtils.logException(ex, this.logger, "info", "%s occurred while trying to answer rpc request: %s");
             return false;
         }
     }
+
+    /**
+     * Answers the request defined by {@param props} with an {@link ErrorReply}
+     * @param props Message props of the original request message
+     * @param error Kind of the error
+     * @param message Description of the error for the requester
+     * @return True, if answering worked, false otherwise
+     */
+    protected boolean answerError(BasicProperties props, ErrorC error, String message) {
+        return this.answerRequest(props, new ErrorReply(error, message));
+    }
 }
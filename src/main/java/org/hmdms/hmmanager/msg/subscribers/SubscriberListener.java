@@ -0,0 +1,28 @@
+package org.hmdms.hmmanager.msg.subscribers;
+
+import org.hmdms.hmmanager.msg.MessageInfo;
+
+/**
+ * Listener that is informed by a subscriber about the progress on the messages it was given
+ */
+public interface SubscriberListener {
+    /**
+     * Called, when {@param subscriber} finished working on {@param mi}, regardless of whether it succeeded
+     * @param subscriber Subscriber that worked on the message
+     * @param mi Message that was completed
+     */
+    void messageCompleted(ISubscriber subscriber, MessageInfo mi);
+
+    /**
+     * Called, when {@param subscriber} did not start working on {@param mi}, because its deadline passed
+     * @param subscriber Subscriber the message was given to
+     * @param mi Message that expired
+     */
+    void messageExpired(ISubscriber subscriber, MessageInfo mi);
+
+    /**
+     * Called, when {@param subscriber} had to refuse messages before and is now able to take on new ones again
+     * @param subscriber Subscriber with free capacity
+     */
+    void capacityAvailable(ISubscriber subscriber);
+}
@@ -1,13 +1,16 @@
 package org.hmdms.hmmanager.msg.subscribers;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.rabbitmq.client.ConnectionFactory;
+import org.hmdms.hmmanager.core.user.LoginRequest;
+import org.hmdms.hmmanager.core.user.LoginResult;
 import org.hmdms.hmmanager.core.user.UserTicket;
+import org.hmdms.hmmanager.msg.ErrorC;
 import org.hmdms.hmmanager.msg.MessageInfo;
+import org.hmdms.hmmanager.msg.ReplyPublisher;
 import org.hmdms.hmmanager.msg.TopicC;
-import org.hmdms.hmmanager.sys.StateC;
+import org.hmdms.hmmanager.sys.exceptions.auth.UserNotFoundException;
 import org.hmdms.hmmanager.sys.services.UserService;
-import org.hmdms.hmmanager.utils.JsonUtils;
+import org.hmdms.hmmanager.utils.JsonMappers;
 import org.hmdms.hmmanager.utils.LoggingUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,77 +27,99 @@ public class UserSubscriber extends Subscriber {
     private final Logger logger = LoggerFactory.getLogger(UserSubscriber.class);
 
     /**
-     * Constructs a new {@link UserSubscriber} that connects to the RabbitMQ over the {@link ConnectionFactory}
-     * defined in {@param conn}.
-     * @param conn {@link ConnectionFactory} the subscriber should use to connect to the rabbitmq
+     * Constructs a new {@link UserSubscriber} that answers requests over the {@link ReplyPublisher}
+     * defined in {@param replyPublisher}.
+     * @param replyPublisher {@link ReplyPublisher} the subscriber should use to answer requests
      */
-    public UserSubscriber(ConnectionFactory conn) {
-        super(new String[]{"cm"}, conn);
+    public UserSubscriber(ReplyPublisher replyPublisher) {
+        super(replyPublisher);
         this.topic = TopicC.AUTH;
     }
 
     /**
      * {@inheritDoc}
-     * Messages are cached. Subscriber will work on them in their own thread.
-     * @param mi Messages of which the subscriber should be notified
-     * @return True, if messages could be cached, false otherwise. Reasons for this could be, that the
-     * cache could not be locked by this thread.
+     * Logs in the user given in the message and answers over the message queue opened by the requester.
+     * @param mi Message containing the login request
      */
     @Override
-    public boolean notify(ArrayList<MessageInfo> mi) {
-        this.logger.debug(String.format("Trying to add %x messages to the message queue", mi.size()));
-        if (!this.tryToAcquireLock("cm")) {
-            this.logger.debug("Could not acquire lock for messages and therefore could not add messages to queue");
-            this.unlock("cm");
-            return false;
-        }
-
-        this.currentMessages.addAll(mi);
-        this.logger.debug("Added all messages to queue");
+    protected void handleMessage(MessageInfo mi) {
+        try {
+            // The body was already parsed when the message was received, only bind the tree to the request
+            JsonNode message = mi.getMessageNode();
+            LoginRequest request = message == null ? null : JsonMappers.LOGIN_REQUEST_READER.readValue(message);
+            if (request == null || !request.isComplete()) {
+                this.answerError(mi.getMessageProps(), ErrorC.BAD_REQUEST, "No username or password given");
+            } else {
+                this.login(mi, request);
+            }
 
-        this.unlock("cm");
-        return true;
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, this.logger, "info");
+            this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
+        }
     }
 
     /**
-     * Main logic of this object.
-     * Iterates through the entire cache of messages and works all of them. After each message that was worked on,
-     * the subscriber answers over the message queue opened by the requester.
+     * {@inheritDoc}
+     * Logs in the users of all complete login requests of the batch with {@link UserService#loginAll(java.util.List)},
+     * which needs a single query for all credentials and a single insert for all tickets. A batch of one message is
+     * handled by {@link UserSubscriber#handleMessage(MessageInfo)}.
+     * @param batch Messages containing login requests
      */
     @Override
-    public void run() {
-        if (!this.state.equals(StateC.INITIALIZED) && !this.state.equals(StateC.STARTED)) {
-            this.logger.debug(String.format("Not running %s as the components state is %s", this, this.state));
+    protected void handleMessages(ArrayList<MessageInfo> batch) {
+        if (batch.size() == 1) {
+            this.handleMessage(batch.get(0));
             return;
         }
 
-        this.state = StateC.WORKING;
-        while (this.state.equals(StateC.WORKING)) {
-            if (!this.tryToAcquireLock("cm")) continue;
-
-            // Iterate through all messages and login the user
-            if (!this.currentMessages.isEmpty()) {
-                ArrayList<MessageInfo> toRemove = new ArrayList<>();
-                for (MessageInfo mi : this.currentMessages) {
-                    String message = mi.getJsonMessage();
-                    try {
-                        if (!JsonUtils.jsonHasProperty(message, "username")
-                            || !JsonUtils.jsonHasProperty(message, "password")) {
-                            this.loginFailed(mi, "No username or password given");
-                        } else {
-                            this.login(mi);
-                        }
-
-                    } catch (Exception ex) {
-                        LoggingUtils.logException(ex, this.logger, "info");
-                        this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
-                    }
+        ArrayList<MessageInfo> messages = new ArrayList<>(batch.size());
+        ArrayList<LoginRequest> requests = new ArrayList<>(batch.size());
+        for (MessageInfo mi : batch) {
+            try {
+                JsonNode message = mi.getMessageNode();
+                LoginRequest request = message == null ? null : JsonMappers.LOGIN_REQUEST_READER.readValue(message);
+                if (request == null || !request.isComplete()) {
+                    this.answerError(mi.getMessageProps(), ErrorC.BAD_REQUEST, "No username or password given");
+                } else {
+                    messages.add(mi);
+                    requests.add(request);
+                }
+            } catch (Exception ex) {
+                LoggingUtils.logException(ex, this.logger, "info");
+                this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
+            }
+        }
+        if (requests.isEmpty()) return;
 
-                    toRemove.add(mi);
+        ArrayList<LoginResult> results;
+        try {
+            results = UserService.loginAll(requests);
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, this.logger, "info", "%s occurred during login: %s");
+            for (MessageInfo mi : messages) {
+                this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
+            }
+            return;
+        }
+        this.logger.debug("Logged in {} users at once", requests.size());
+        for (int i = 0; i < messages.size(); i++) {
+            MessageInfo mi = messages.get(i);
+            LoginResult result = results.get(i);
+            if (result.isSuccessful()) {
+                if (!this.answerRequest(mi.getMessageProps(), result.getTicket())) {
+                    this.logger.warn(
+                            "Ticket for message {} could not be published, answering with an error", mi.getId()
+                    );
+                    this.loginFailedInternal(mi, "Reply with the ticket could not be published");
                 }
-                this.currentMessages.removeAll(toRemove);
+            } else if (result.getFailure() instanceof UserNotFoundException
+                    || result.getFailure() instanceof IllegalArgumentException) {
+                this.loginFailed(mi, "Invalid username or password");
+            } else {
+                Exception ex = result.getFailure();
+                this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
             }
-            this.unlock("cm");
         }
     }
 
@@ -104,7 +129,8 @@ public class UserSubscriber extends Subscriber {
      * @param reason Reason for the failed login
      */
     private void loginFailedInternal(MessageInfo mi, String reason) {
-        this.answerRequest(mi.getMessageProps(), "Something went wrong on our side");
+        this.logger.debug("Login failed internally: {}", reason);
+        this.answerError(mi.getMessageProps(), ErrorC.INTERNAL, "Something went wrong on our side");
     }
 
     /**
@@ -113,37 +139,27 @@ public class UserSubscriber extends Subscriber {
      * @param reason Reason for the failed login
      */
     private void loginFailed(MessageInfo mi, String reason) {
-        // TODO Answer in different format than string
-        this.answerRequest(mi.getMessageProps(), "Something went wrong on your side");
+        this.answerError(mi.getMessageProps(), ErrorC.REJECTED, reason);
     }
 
     /**
      * Logs a user into the system
      * @param mi Object containing information about whom to login.
+     * @param request Login request read from {@param mi}
      */
-    private void login(MessageInfo mi) {
-        JsonNode node;
-        try {
-            node = JsonUtils.getNodeFromString(mi.getJsonMessage());
-        } catch (Exception ex) {
-            LoggingUtils.logException(
-                    ex,
-                    this.logger,
-                    "info",
-                    "%s occurred while trying to login a user: %s"
-            );
-            this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
-            return;
-        }
-
-        String userName = node.get("username").asText();
-        String pw = node.get("password").asText();
+    private void login(MessageInfo mi, LoginRequest request) {
+        String userName = request.getUsername();
+        String pw = request.getPassword();
 
         UserTicket ticket;
         try {
             ticket = UserService.login(userName, pw);
+        } catch (UserNotFoundException | IllegalArgumentException ex) {
+            this.loginFailed(mi, "Invalid username or password");
+            return;
         } catch (Exception ex) {
-            this.loginFailed(mi, "");
+            LoggingUtils.logException(ex, this.logger, "info", "%s occurred during login: %s");
+            this.loginFailedInternal(mi, String.format("%s: %s", ex.getClass().getName(), ex.getMessage()));
             return;
         }
         if (!this.answerRequest(mi.getMessageProps(), ticket)) {
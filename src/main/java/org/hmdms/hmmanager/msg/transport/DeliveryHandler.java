@@ -0,0 +1,17 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import com.rabbitmq.client.BasicProperties;
+
+/**
+ * Handles the deliveries of an {@link InboundChannel}
+ */
+@FunctionalInterface
+public interface DeliveryHandler {
+    /**
+     * Is called for every delivery on the channel
+     * @param deliveryTag Delivery tag on the channel
+     * @param props Properties of the delivery
+     * @param body Body of the delivery. Is not copied and must not be modified
+     */
+    void handle(long deliveryTag, BasicProperties props, byte[] body);
+}
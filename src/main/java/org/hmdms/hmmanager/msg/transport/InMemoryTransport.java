@@ -0,0 +1,435 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BasicProperties;
+import org.hmdms.hmmanager.utils.LoggingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport inside the running process, for callers living in the same process and for measuring the overhead of
+ * the pipeline without a message queue. Queues are created on first use and live as long as the transport.
+ * Messages are never serialized or copied, bodies and properties are handed to the consumer as they were published.
+ * Like on the message queue, every inbound channel receives at most its prefetch of unacknowledged deliveries,
+ * deliveries are spread over all consumers of a queue and unacknowledged deliveries are delivered again when they
+ * are given back or their channel is closed.
+ */
+public class InMemoryTransport implements Transport {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryTransport.class);
+    /**
+     * All queues by their name
+     */
+    private final ConcurrentHashMap<String, MemoryQueue> queues = new ConcurrentHashMap<>();
+    /**
+     * Source of the consumer tags
+     */
+    private final AtomicLong nextConsumerTag = new AtomicLong(0);
+    /**
+     * True, once the transport was closed
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Default constructor
+     */
+    public InMemoryTransport() {
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param queueName Name of the queue that is consumed
+     * @param prefetch Maximum number of unacknowledged deliveries on the channel, 0 for no limit
+     * @param executor Executor all deliveries of the channel are handled on
+     * @param name Name of the channel
+     * @return The opened channel
+     * @throws IOException When the transport was closed
+     */
+    @Override
+    public InboundChannel openInbound(String queueName, int prefetch, ExecutorService executor, String name)
+            throws IOException {
+        if (this.closed) throw new IOException("Transport is closed");
+        if (executor == null) throw new IllegalArgumentException("No executor given");
+        return new MemoryInbound(this.queue(queueName), prefetch, executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Publishes are complete as soon as they returned, so confirms are never awaited.
+     * @param confirms Ignored
+     * @return The opened channel
+     * @throws IOException When the transport was closed
+     */
+    @Override
+    public OutboundChannel openOutbound(boolean confirms) throws IOException {
+        if (this.closed) throw new IOException("Transport is closed");
+        return new MemoryOutbound();
+    }
+
+    /**
+     * Publishes {@param body} to the queue {@param queueName}. Is used by callers in the same process to send
+     * requests without an outbound channel.
+     * @param queueName Name of the queue
+     * @param props Properties of the message
+     * @param body Body of the message. Is not copied and must not be modified afterwards
+     * @throws IOException When the transport was closed
+     */
+    public void publish(String queueName, BasicProperties props, byte[] body) throws IOException {
+        if (this.closed) throw new IOException("Transport is closed");
+        this.queue(queueName).publish(new Message(props, body));
+    }
+
+    /**
+     * Returns the number of messages waiting in queue {@param queueName}, not counting unacknowledged deliveries
+     * @param queueName Name of the queue
+     * @return Number of waiting messages
+     */
+    public int getQueuedCount(String queueName) {
+        MemoryQueue q = this.queues.get(queueName);
+        return q == null ? 0 : q.messages.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Drops all queues and the messages in them.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (MemoryQueue q : this.queues.values()) {
+            q.consumers.clear();
+            q.messages.clear();
+        }
+        this.queues.clear();
+    }
+
+    /**
+     * Returns the queue with name {@param queueName}, creating it if necessary
+     * @param queueName Name of the queue
+     * @return The queue
+     * @throws IllegalArgumentException When no name is given
+     */
+    private MemoryQueue queue(String queueName) throws IllegalArgumentException {
+        if (queueName == null || queueName.isEmpty()) throw new IllegalArgumentException("No queue name given");
+        return this.queues.computeIfAbsent(queueName, n -> new MemoryQueue());
+    }
+
+    /**
+     * A published message
+     */
+    private static class Message {
+        /**
+         * Properties of the message
+         */
+        private final BasicProperties props;
+        /**
+         * Body of the message
+         */
+        private final byte[] body;
+
+        /**
+         * Creates a new message
+         * @param props Properties of the message
+         * @param body Body of the message
+         */
+        private Message(BasicProperties props, byte[] body) {
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A queue and the channels consuming it
+     */
+    private static class MemoryQueue {
+        /**
+         * Messages waiting for a consumer with free prefetch
+         */
+        private final ConcurrentLinkedDeque<Message> messages = new ConcurrentLinkedDeque<>();
+        /**
+         * Channels consuming the queue
+         */
+        private final CopyOnWriteArrayList<MemoryInbound> consumers = new CopyOnWriteArrayList<>();
+        /**
+         * Number of requests to hand out messages, only the thread raising it from 0 hands out messages
+         */
+        private final AtomicInteger pending = new AtomicInteger(0);
+        /**
+         * Consumer that is offered the next message first. Only used by the thread handing out messages
+         */
+        private int next = 0;
+
+        /**
+         * Adds {@param message} to the end of the queue and hands it out, if a consumer has room for it
+         * @param message Published message
+         */
+        private void publish(Message message) {
+            this.messages.offer(message);
+            this.dispatch();
+        }
+
+        /**
+         * Puts {@param message} back to the front of the queue
+         * @param message Message that was given back
+         */
+        private void requeue(Message message) {
+            this.messages.offerFirst(message);
+        }
+
+        /**
+         * Hands out waiting messages to the consumers in turn, until the queue is empty or no consumer has room left.
+         * Concurrent calls are merged into the thread already handing out messages.
+         */
+        private void dispatch() {
+            if (this.pending.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                while (!this.messages.isEmpty()) {
+                    MemoryInbound consumer = this.reserveConsumer();
+                    if (consumer == null) break;
+                    Message message = this.messages.poll();
+                    if (message == null) {
+                        consumer.release(1);
+                        break;
+                    }
+                    consumer.deliver(message);
+                }
+                missed = this.pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Finds the next consumer, that has room for another delivery, and reserves the room
+         * @return Consumer with reserved room, null if no consumer has room left
+         */
+        private MemoryInbound reserveConsumer() {
+            Object[] consumers = this.consumers.toArray();
+            for (int i = 0; i < consumers.length; i++) {
+                MemoryInbound c = (MemoryInbound) consumers[(this.next + i) % consumers.length];
+                if (c.reserve()) {
+                    this.next = (this.next + i + 1) % consumers.length;
+                    return c;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Inbound channel consuming a {@link MemoryQueue}
+     */
+    private class MemoryInbound implements InboundChannel {
+        /**
+         * The consumed queue
+         */
+        private final MemoryQueue queue;
+        /**
+         * Maximum number of unacknowledged deliveries, 0 for no limit
+         */
+        private final int prefetch;
+        /**
+         * Executor the deliveries are handled on
+         */
+        private final ExecutorService executor;
+        /**
+         * Unacknowledged deliveries by their delivery tag
+         */
+        private final ConcurrentSkipListMap<Long, Message> unacked = new ConcurrentSkipListMap<>();
+        /**
+         * Number of unacknowledged deliveries, including the ones reserved for delivery
+         */
+        private final AtomicInteger unackedCount = new AtomicInteger(0);
+        /**
+         * Source of the delivery tags
+         */
+        private final AtomicLong nextTag = new AtomicLong(0);
+        /**
+         * Handler of the active consumer, null while not consuming
+         */
+        private volatile DeliveryHandler handler;
+        /**
+         * Tag of the active consumer, null while not consuming
+         */
+        private volatile String consumerTag;
+        /**
+         * False, once the channel was closed
+         */
+        private volatile boolean open = true;
+
+        /**
+         * Creates a new channel for {@param queue}
+         * @param queue The consumed queue
+         * @param prefetch Maximum number of unacknowledged deliveries, 0 for no limit
+         * @param executor Executor the deliveries are handled on
+         */
+        private MemoryInbound(MemoryQueue queue, int prefetch, ExecutorService executor) {
+            this.queue = queue;
+            this.prefetch = Math.max(0, prefetch);
+            this.executor = executor;
+        }
+
+        @Override
+        public synchronized String consume(DeliveryHandler handler) throws IOException {
+            if (!this.open) throw new IOException("Channel is closed");
+            if (handler == null) throw new IllegalArgumentException("No delivery handler given");
+            if (this.consumerTag != null) throw new IOException("Channel is already consuming");
+            this.handler = handler;
+            this.consumerTag = "memory-" + nextConsumerTag.incrementAndGet();
+            this.queue.consumers.add(this);
+            this.queue.dispatch();
+            return this.consumerTag;
+        }
+
+        @Override
+        public synchronized void cancel(String consumerTag) {
+            if (consumerTag == null || !consumerTag.equals(this.consumerTag)) return;
+            this.queue.consumers.remove(this);
+            this.consumerTag = null;
+            this.handler = null;
+        }
+
+        @Override
+        public void ack(long deliveryTag, boolean multiple) {
+            this.release(this.remove(deliveryTag, multiple).size());
+            this.queue.dispatch();
+        }
+
+        @Override
+        public void nack(long deliveryTag, boolean multiple, boolean requeue) {
+            ArrayList<Message> removed = this.remove(deliveryTag, multiple);
+            if (requeue) {
+                // Given back in reverse, so the oldest delivery ends up at the front of the queue again
+                for (int i = removed.size() - 1; i >= 0; i--) {
+                    this.queue.requeue(removed.get(i));
+                }
+            }
+            this.release(removed.size());
+            this.queue.dispatch();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open && !closed;
+        }
+
+        @Override
+        public void close() {
+            this.cancel(this.consumerTag);
+            this.open = false;
+            this.nack(Long.MAX_VALUE, true, true);
+        }
+
+        /**
+         * Reserves room for another delivery
+         * @return True, if the channel is consuming and has room for another delivery
+         */
+        private boolean reserve() {
+            if (this.handler == null) return false;
+            while (true) {
+                int count = this.unackedCount.get();
+                if (this.prefetch > 0 && count >= this.prefetch) return false;
+                if (this.unackedCount.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        /**
+         * Frees the room of {@param count} deliveries
+         * @param count Number of deliveries that were acknowledged or given back
+         */
+        private void release(int count) {
+            if (count > 0) this.unackedCount.addAndGet(-count);
+        }
+
+        /**
+         * Hands {@param message} to the handler on the executor of the channel. Room for it must have been reserved.
+         * @param message Message to be delivered
+         */
+        private void deliver(Message message) {
+            DeliveryHandler h = this.handler;
+            long tag = this.nextTag.incrementAndGet();
+            this.unacked.put(tag, message);
+            if (h == null) {
+                this.nack(tag, false, true);
+                return;
+            }
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        h.handle(tag, message.props, message.body);
+                    } catch (Exception ex) {
+                        LoggingUtils.logException(ex, logger, "warn", "%s occurred while handling delivery: %s");
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // The executor was shut down, the message stays in the queue for other consumers
+                this.cancel(this.consumerTag);
+                this.queue.requeue(this.unacked.remove(tag));
+                this.release(1);
+            }
+        }
+
+        /**
+         * Removes the unacknowledged delivery with tag {@param deliveryTag}
+         * @param deliveryTag Delivery tag on this channel
+         * @param multiple True, to remove all deliveries up to and including {@param deliveryTag}
+         * @return Removed messages, oldest first
+         */
+        private ArrayList<Message> remove(long deliveryTag, boolean multiple) {
+            ArrayList<Message> removed = new ArrayList<>();
+            if (!multiple) {
+                Message m = this.unacked.remove(deliveryTag);
+                if (m != null) removed.add(m);
+                return removed;
+            }
+            ConcurrentNavigableMap<Long, Message> head = this.unacked.headMap(deliveryTag, true);
+            for (Map.Entry<Long, Message> e : head.entrySet()) {
+                if (this.unacked.remove(e.getKey(), e.getValue())) removed.add(e.getValue());
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Outbound channel publishing into the queues of the transport
+     */
+    private class MemoryOutbound implements OutboundChannel {
+        /**
+         * Default constructor
+         */
+        private MemoryOutbound() {
+        }
+
+        @Override
+        public void publish(String queueName, AMQP.BasicProperties props, byte[] body) throws IOException {
+            InMemoryTransport.this.publish(queueName, props, body);
+        }
+
+        @Override
+        public void waitForConfirms(long timeoutMillis) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import java.io.IOException;
+
+/**
+ * Channel a single queue is consumed on. Delivery tags are only valid on the channel they were received on.
+ */
+public interface InboundChannel {
+    /**
+     * Starts consuming the queue of the channel. Deliveries must be acknowledged with
+     * {@link InboundChannel#ack(long, boolean)} or given back with {@link InboundChannel#nack(long, boolean, boolean)}
+     * @param handler Handler called for every delivery on the executor of the channel
+     * @return Tag of the consumer, used for cancelling it
+     * @throws IOException When the consumer could not be registered
+     */
+    String consume(DeliveryHandler handler) throws IOException;
+
+    /**
+     * Stops the consumer with tag {@param consumerTag}. Deliveries already received stay unacknowledged until they
+     * are acknowledged or given back.
+     * @param consumerTag Tag of the consumer
+     * @throws IOException When the consumer could not be cancelled
+     */
+    void cancel(String consumerTag) throws IOException;
+
+    /**
+     * Acknowledges the delivery with tag {@param deliveryTag}
+     * @param deliveryTag Delivery tag on this channel
+     * @param multiple True, to acknowledge all deliveries up to and including {@param deliveryTag}
+     * @throws IOException When the acknowledgement could not be sent
+     */
+    void ack(long deliveryTag, boolean multiple) throws IOException;
+
+    /**
+     * Gives back the delivery with tag {@param deliveryTag}
+     * @param deliveryTag Delivery tag on this channel
+     * @param multiple True, to give back all deliveries up to and including {@param deliveryTag}
+     * @param requeue True, if the delivery should be delivered again, false to drop it
+     * @throws IOException When the delivery could not be given back
+     */
+    void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException;
+
+    /**
+     * Checks, whether the channel is still usable
+     * @return True, if the channel is open
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the channel. Unacknowledged deliveries are delivered again.
+     * @throws IOException When the channel could not be closed cleanly
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,38 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+
+/**
+ * Channel replies are published on. A channel must only be used by a single thread at a time.
+ */
+public interface OutboundChannel {
+    /**
+     * Publishes {@param body} to the queue {@param queueName}
+     * @param queueName Name of the queue, usually the reply queue of a request
+     * @param props Properties of the message
+     * @param body Body of the message. Is not copied and must not be modified afterwards
+     * @throws IOException When the message could not be published
+     */
+    void publish(String queueName, AMQP.BasicProperties props, byte[] body) throws IOException;
+
+    /**
+     * Waits until all publishes on the channel are confirmed. Returns right away, if confirms are not used.
+     * @param timeoutMillis Maximum time in milliseconds to wait
+     * @throws IOException When a publish was not confirmed or the confirms did not arrive in time
+     */
+    void waitForConfirms(long timeoutMillis) throws IOException;
+
+    /**
+     * Checks, whether the channel is still usable
+     * @return True, if the channel is open
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the channel
+     * @throws IOException When the channel could not be closed cleanly
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,249 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.hmdms.hmmanager.utils.LoggingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transport over a rabbitmq service. Every inbound channel gets a connection of its own, so deliveries of different
+ * inbound channels are read and handled in parallel. All outbound channels share a single, automatically recovering
+ * connection, that is opened when the first outbound channel is needed.
+ */
+public class RabbitTransport implements Transport {
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RabbitTransport.class);
+    /**
+     * Factory for creating connections to the rabbitmq service
+     */
+    private final ConnectionFactory factory;
+    /**
+     * Connection all outbound channels are created on. Is replaced, if it is closed and can not recover on its own
+     */
+    private volatile Connection outbound;
+
+    /**
+     * Creates a transport to the rabbitmq service on {@param host}
+     * @param host Host on which the rabbitmq service is active
+     */
+    public RabbitTransport(String host) {
+        this(new ConnectionFactory());
+        this.factory.setHost(host);
+    }
+
+    /**
+     * Creates a transport using {@param factory}. No connection is opened until the first channel is opened.
+     * @param factory Factory for creating connections to the rabbitmq service
+     * @throws IllegalArgumentException When no factory is given
+     */
+    public RabbitTransport(ConnectionFactory factory) throws IllegalArgumentException {
+        if (factory == null) throw new IllegalArgumentException("No connection factory given");
+        this.factory = factory;
+        this.factory.setAutomaticRecoveryEnabled(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Opens a connection of its own for the channel, whose deliveries are dispatched on {@param executor}.
+     * @param queueName Name of the queue that is consumed
+     * @param prefetch Maximum number of unacknowledged deliveries on the channel
+     * @param executor Executor all deliveries of the channel are handled on
+     * @param name Name of the connection
+     * @return The opened channel
+     * @throws IOException When the connection or the channel could not be opened
+     */
+    @Override
+    public InboundChannel openInbound(String queueName, int prefetch, ExecutorService executor, String name)
+            throws IOException {
+        Connection conn;
+        try {
+            conn = this.factory.newConnection(executor, name);
+        } catch (TimeoutException ex) {
+            throw new IOException("Could not connect to the message queue", ex);
+        }
+        try {
+            Channel channel = conn.createChannel();
+            channel.queueDeclare(queueName, false, false, false, null);
+            channel.basicQos(prefetch);
+            return new Inbound(conn, channel, queueName);
+        } catch (IOException ex) {
+            conn.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Opens the channel on the shared outbound connection. Reconnects first, if the connection is closed.
+     * @param confirms True, if publisher confirms should be enabled on the channel
+     * @return The opened channel
+     * @throws IOException When the connection or the channel could not be opened
+     */
+    @Override
+    public OutboundChannel openOutbound(boolean confirms) throws IOException {
+        Connection conn = this.outbound;
+        if (conn == null || !conn.isOpen()) {
+            synchronized (this) {
+                conn = this.outbound;
+                if (conn == null || !conn.isOpen()) {
+                    logger.debug("Opening connection for replies");
+                    try {
+                        conn = this.factory.newConnection();
+                    } catch (Exception ex) {
+                        throw new IOException("Could not connect to the message queue", ex);
+                    }
+                    this.outbound = conn;
+                }
+            }
+        }
+
+        Channel channel = conn.createChannel();
+        if (confirms) channel.confirmSelect();
+        return new Outbound(channel);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Closes the shared outbound connection. Inbound connections are closed together with their channels.
+     */
+    @Override
+    public void close() {
+        try {
+            Connection conn = this.outbound;
+            if (conn != null && conn.isOpen()) conn.close();
+        } catch (Exception ex) {
+            LoggingUtils.logException(ex, logger, "debug", "%s occurred while closing reply connection: %s");
+        }
+    }
+
+    /**
+     * Inbound channel on a connection of its own
+     */
+    private static class Inbound implements InboundChannel {
+        /**
+         * Connection of the channel
+         */
+        private final Connection connection;
+        /**
+         * The consumed channel
+         */
+        private final Channel channel;
+        /**
+         * Name of the consumed queue
+         */
+        private final String queueName;
+
+        /**
+         * Wraps {@param channel}
+         * @param connection Connection of the channel
+         * @param channel The consumed channel
+         * @param queueName Name of the consumed queue
+         */
+        private Inbound(Connection connection, Channel channel, String queueName) {
+            this.connection = connection;
+            this.channel = channel;
+            this.queueName = queueName;
+        }
+
+        @Override
+        public String consume(DeliveryHandler handler) throws IOException {
+            return this.channel.basicConsume(
+                    this.queueName,
+                    false,
+                    (tag, delivery) -> handler.handle(
+                            delivery.getEnvelope().getDeliveryTag(), delivery.getProperties(), delivery.getBody()
+                    ),
+                    (tag -> { })
+            );
+        }
+
+        @Override
+        public void cancel(String consumerTag) throws IOException {
+            this.channel.basicCancel(consumerTag);
+        }
+
+        @Override
+        public void ack(long deliveryTag, boolean multiple) throws IOException {
+            this.channel.basicAck(deliveryTag, multiple);
+        }
+
+        @Override
+        public void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+            this.channel.basicNack(deliveryTag, multiple, requeue);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (this.channel.isOpen()) this.channel.close();
+            } catch (TimeoutException ex) {
+                throw new IOException("Channel did not close in time", ex);
+            } finally {
+                if (this.connection.isOpen()) this.connection.close();
+            }
+        }
+    }
+
+    /**
+     * Outbound channel on the shared outbound connection
+     */
+    private static class Outbound implements OutboundChannel {
+        /**
+         * The publishing channel
+         */
+        private final Channel channel;
+
+        /**
+         * Wraps {@param channel}
+         * @param channel The publishing channel
+         */
+        private Outbound(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void publish(String queueName, AMQP.BasicProperties props, byte[] body) throws IOException {
+            this.channel.basicPublish("", queueName, props, body);
+        }
+
+        @Override
+        public void waitForConfirms(long timeoutMillis) throws IOException {
+            try {
+                this.channel.waitForConfirmsOrDie(timeoutMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for confirms", ex);
+            } catch (TimeoutException ex) {
+                throw new IOException("Publishes were not confirmed in time", ex);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (this.channel.isOpen()) this.channel.close();
+            } catch (TimeoutException ex) {
+                throw new IOException("Channel did not close in time", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Carries requests to the coordinator and replies back to the requesters. A transport opens inbound channels, on
+ * which a queue is consumed and its deliveries are acknowledged, and outbound channels, on which replies are
+ * published. Message properties are AMQP properties on every transport, so messages look the same no matter how
+ * they arrived.
+ */
+public interface Transport {
+    /**
+     * Opens a channel for consuming {@param queueName}. The queue is created, if it does not exist yet.
+     * @param queueName Name of the queue that is consumed
+     * @param prefetch Maximum number of unacknowledged deliveries on the channel
+     * @param executor Executor all deliveries of the channel are handled on, one after another
+     * @param name Name of the channel, used for identifying it in logs and management tools
+     * @return The opened channel
+     * @throws IOException When the channel could not be opened
+     */
+    InboundChannel openInbound(String queueName, int prefetch, ExecutorService executor, String name)
+            throws IOException;
+
+    /**
+     * Opens a channel for publishing replies
+     * @param confirms True, if publishes on the channel should be confirmed
+     * @return The opened channel
+     * @throws IOException When the channel could not be opened
+     */
+    OutboundChannel openOutbound(boolean confirms) throws IOException;
+
+    /**
+     * Closes everything the transport holds open. Channels opened before are unusable afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,5 @@
+/**
+ * Contains the transports the coordinator consumes requests and publishes replies with. Every transport provides
+ * inbound channels for consuming and acknowledging deliveries and outbound channels for publishing replies
+ */
+package org.hmdms.hmmanager.msg.transport;
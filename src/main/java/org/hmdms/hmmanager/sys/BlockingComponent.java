@@ -53,7 +53,7 @@ public abstract class BlockingComponent extends Component {
      * with given id exists
      */
     protected boolean tryToAcquireLock(String lockId) throws IllegalArgumentException {
-        this.logger.trace("Thread " + Thread.currentThread() + " trying to acquire lock for id " + lockId);
+        this.logger.trace("Thread {} trying to acquire lock for id {}", Thread.currentThread(), lockId);
         if (lockId == null || lockId.isEmpty()) {
             throw new IllegalArgumentException("No lockId given");
         }
@@ -64,12 +64,12 @@ public abstract class BlockingComponent extends Component {
         if (!this.locks.get(lockId).isHeldByCurrentThread()) {
             try {
                 if (!this.locks.get(lockId).tryLock(200, TimeUnit.MILLISECONDS)) {
-                    this.logger.trace("Lock " + this.locks.get(lockId) + " could not be acquired, still held by other thread");
+                    this.logger.trace("Lock {} could not be acquired, still held by other thread", lockId);
                     return false;
                 }
-                this.logger.trace("Lock " + this.locks.get(lockId) + " now held by " + Thread.currentThread());
+                this.logger.trace("Lock {} now held by {}", lockId, Thread.currentThread());
             } catch (Exception ex) {
-                this.logger.debug("Exception occurred while trying to acquire lock on object " + locks.get(lockId) + ": " + ex.getMessage());
+                this.logger.debug("Exception occurred while trying to acquire lock {}: {}", lockId, ex.getMessage());
                 return false;
             }
         }
@@ -83,7 +83,7 @@ public abstract class BlockingComponent extends Component {
      * with given id exists
      */
     protected void unlock(String lockId) throws IllegalArgumentException {
-        this.logger.trace("Thread " + Thread.currentThread() + " trying to release lock for id " + lockId);
+        this.logger.trace("Thread {} trying to release lock for id {}", Thread.currentThread(), lockId);
         if (lockId == null || lockId.isEmpty()) {
             throw new IllegalArgumentException("No lockId given");
         }
@@ -12,7 +12,7 @@ public abstract class Component {
     /**
      * State of the component
      */
-    protected StateC state;
+    protected volatile StateC state;
     /**
      * Health of the component
      */
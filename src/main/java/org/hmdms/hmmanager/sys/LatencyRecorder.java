@@ -0,0 +1,78 @@
+package org.hmdms.hmmanager.sys;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies of operations in a ring buffer of fixed size, so percentiles of the most recent operations can
+ * be computed. Recording is lock-free and may be done by any number of threads. Percentiles are only an estimate,
+ * as samples recorded while they are computed may or may not be taken into account.
+ */
+public class LatencyRecorder {
+    /**
+     * Most recent samples. Once the buffer is full, the oldest samples are overwritten
+     */
+    private final AtomicLongArray samples;
+    /**
+     * Number of samples recorded since this recorder was created
+     */
+    private final AtomicLong recorded = new AtomicLong(0);
+    /**
+     * Value of {@link LatencyRecorder#recorded} at the last reset. Only samples recorded afterwards are evaluated
+     */
+    private volatile long resetAt = 0;
+
+    /**
+     * Creates a recorder keeping the latest {@param size} samples
+     * @param size Number of samples kept
+     * @throws IllegalArgumentException When the size is smaller than 1
+     */
+    public LatencyRecorder(int size) throws IllegalArgumentException {
+        if (size < 1) throw new IllegalArgumentException("Size must be at least 1");
+        this.samples = new AtomicLongArray(size);
+    }
+
+    /**
+     * Records a single sample
+     * @param latency Latency of the operation, in any unit
+     */
+    public void record(long latency) {
+        long index = this.recorded.getAndIncrement();
+        this.samples.set((int) (index % this.samples.length()), latency);
+    }
+
+    /**
+     * Returns the number of samples recorded since the last reset, at most the size of the buffer
+     * @return Number of samples {@link LatencyRecorder#percentile(double)} is computed from
+     */
+    public int getSampleCount() {
+        return (int) Math.min(this.recorded.get() - this.resetAt, this.samples.length());
+    }
+
+    /**
+     * Computes the {@param percentile} percentile of the samples recorded since the last reset
+     * @param percentile Percentile between 0 and 100
+     * @return Latency at the given percentile, 0 if no samples were recorded
+     */
+    public long percentile(double percentile) {
+        long end = this.recorded.get();
+        int count = (int) Math.min(end - this.resetAt, this.samples.length());
+        if (count <= 0) return 0;
+
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = this.samples.get((int) ((end - 1 - i) % this.samples.length()));
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * count) - 1;
+        return sorted[Math.max(0, rank)];
+    }
+
+    /**
+     * Discards all samples recorded so far
+     */
+    public void reset() {
+        this.resetAt = this.recorded.get();
+    }
+}
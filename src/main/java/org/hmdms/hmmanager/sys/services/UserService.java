@@ -1,5 +1,7 @@
 package org.hmdms.hmmanager.sys.services;
 
+import org.hmdms.hmmanager.core.user.LoginRequest;
+import org.hmdms.hmmanager.core.user.LoginResult;
 import org.hmdms.hmmanager.core.user.User;
 import org.hmdms.hmmanager.core.user.UserTicket;
 import org.hmdms.hmmanager.core.user.UserTicketFactory;
@@ -14,9 +16,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -29,6 +34,10 @@ public abstract class UserService extends Service {
      * Logger
      */
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);
+    /**
+     * Time in milliseconds a new ticket is valid
+     */
+    private static final long TICKET_VALIDITY_MILLIS = 100000;
 
     /**
      * Default constructor
@@ -66,6 +75,81 @@ public abstract class UserService extends Service {
         return ticket;
     }
 
+    /**
+     * Logs in the users of all {@param requests} at once. Users are looked up in the {@link UserCache} like in
+     * {@link UserService#login(String, String)}. The passwords of all known users are then read with a single query
+     * and the tickets of all successful logins are written with a single batched insert, both over the same
+     * connection, instead of two connections per login.
+     * @param requests Complete login requests
+     * @return Result for every request, in the order of {@param requests}. Failed results hold a
+     * {@link UserNotFoundException} for unknown users and an {@link IllegalArgumentException} for wrong passwords
+     * @throws SQLException When reading the passwords or writing the tickets failed
+     * @throws IllegalStateException When the user cache could not be locked
+     */
+    public static ArrayList<LoginResult> loginAll(List<LoginRequest> requests)
+            throws SQLException, IllegalStateException {
+        ArrayList<LoginResult> results = new ArrayList<>(requests.size());
+        if (requests.isEmpty()) return results;
+
+        HashMap<String, User> users = new HashMap<>();
+        for (LoginRequest r : requests) {
+            User user = UserCache.getUser(r.getUsername(), false);
+            if (user != null) users.put(r.getUsername(), user);
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<>();
+        try (DBConnection conn = DBConnectionFactory.newDefaultConnection().open()) {
+            // User names are unique, so there is at most one row per user
+            HashMap<String, String> passwords = new HashMap<>();
+            if (!users.isEmpty()) {
+                logger.debug("Checking passwords of {} users for {} logins", users.size(), requests.size());
+                for (Object[] row : conn.query(
+                        "SELECT user_name, pw FROM users WHERE user_name = ANY(?)",
+                        (Object) users.keySet().toArray(new String[0])
+                )) {
+                    passwords.put((String) row[0], (String) row[1]);
+                }
+            }
+
+            Date nowDate = new Date();
+            Date expiryDate = new Date(nowDate.getTime() + TICKET_VALIDITY_MILLIS);
+            for (LoginRequest r : requests) {
+                User user = users.get(r.getUsername());
+                if (user == null) {
+                    logger.debug("User with name {} does not exist in the system", r.getUsername());
+                    results.add(LoginResult.failed(new UserNotFoundException(
+                            String.format("User with name '%s' does not exist", r.getUsername())
+                    )));
+                    continue;
+                }
+                if (!r.getPassword().equals(passwords.get(r.getUsername()))) {
+                    logger.debug("Username {} and pw do not match, won't create a ticket", r.getUsername());
+                    results.add(LoginResult.failed(new IllegalArgumentException("Username and pw do not match")));
+                    continue;
+                }
+
+                UserTicket ticket = UserTicketFactory.createDefaultTicket();
+                ticket.setUserId("" + user.getId());
+                ticket.setTicket(generateTicket());
+                ticket.setIssuedAt(nowDate);
+                ticket.setValidThru(expiryDate);
+                results.add(LoginResult.succeeded(ticket));
+                rows.add(new Object[] {
+                        ticket.getTicket(), user.getId(), new Timestamp(nowDate.getTime()),
+                        new Timestamp(expiryDate.getTime())
+                });
+            }
+            conn.executeBatch(
+                    "INSERT INTO tickets (ticket, user_id, issued_at, valid_thru) VALUES (?, ?, ?, ?)", rows
+            );
+        }
+
+        for (LoginResult result : results) {
+            if (result.isSuccessful()) UserCache.addTicket(result.getTicket());
+        }
+        return results;
+    }
+
     /**
      * Checks, whether the combination of user and password are correct
      * @param userName Username that is trying to authenticate themselves at the system
@@ -173,7 +257,7 @@ public abstract class UserService extends Service {
         try {
             nowDate = new Date();
             expiryDate = new Date();
-            expiryDate.setTime(nowDate.getTime() + 100000);
+            expiryDate.setTime(nowDate.getTime() + TICKET_VALIDITY_MILLIS);
             DBConnection conn = DBConnectionFactory.newDefaultConnection();
             // TODO generalise simepledateformat
             DBQuery query = DBQueryFactory.createInsertQuery(
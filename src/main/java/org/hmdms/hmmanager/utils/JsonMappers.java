@@ -0,0 +1,75 @@
+package org.hmdms.hmmanager.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.hmdms.hmmanager.core.Element;
+import org.hmdms.hmmanager.core.user.LoginRequest;
+import org.hmdms.hmmanager.core.user.UserTicket;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of preconfigured Jackson readers and writers. All of them share a single {@link ObjectMapper}, so
+ * serializers and deserializers are only looked up once. Readers and writers are immutable and can be used by any
+ * number of threads at once.
+ */
+public abstract class JsonMappers {
+    /**
+     * Mapper all readers and writers are created from. Must not be reconfigured after the class is initialized
+     */
+    private static final ObjectMapper MAPPER = createMapper(null);
+    /**
+     * Reader for parsing json into a tree
+     */
+    public static final ObjectReader TREE_READER = MAPPER.reader();
+    /**
+     * Reader for login requests
+     */
+    public static final ObjectReader LOGIN_REQUEST_READER = MAPPER.readerFor(LoginRequest.class);
+    /**
+     * Writer for {@link UserTicket} replies
+     */
+    public static final ObjectWriter USER_TICKET_WRITER = MAPPER.writerFor(UserTicket.class);
+    /**
+     * Writer for {@link Element} replies
+     */
+    public static final ObjectWriter ELEMENT_WRITER = MAPPER.writerFor(Element.class);
+    /**
+     * Writers of all types that were serialized so far, including the prebuilt ones
+     */
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    static {
+        writers.put(UserTicket.class, USER_TICKET_WRITER);
+        writers.put(Element.class, ELEMENT_WRITER);
+    }
+
+    /**
+     * Default constructor
+     */
+    public JsonMappers() { }
+
+    /**
+     * Creates a mapper configured like the shared json mapper, for the format of {@param factory}
+     * @param factory Factory for parsers and generators of the format, null for json
+     * @return New mapper
+     */
+    public static ObjectMapper createMapper(JsonFactory factory) {
+        return new ObjectMapper(factory)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    /**
+     * Returns the writer for objects of type {@param type}. Writers for types without a prebuilt writer are created
+     * on first use and kept for later calls.
+     * @param type Type of the objects to be serialized
+     * @return Writer for {@param type}
+     */
+    public static ObjectWriter writerFor(Class<?> type) {
+        if (type == null) throw new IllegalArgumentException("No type given");
+        return writers.computeIfAbsent(type, MAPPER::writerFor);
+    }
+}
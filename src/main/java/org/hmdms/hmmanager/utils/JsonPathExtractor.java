@@ -0,0 +1,165 @@
+package org.hmdms.hmmanager.utils;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Extracts the values of a fixed set of dotted paths like {@code message.username} from json documents in a single
+ * pass over a streaming {@link JsonParser}, without building a tree of the whole document. Subtrees that contain none
+ * of the paths are skipped and parsing stops as soon as all paths were found. Only the values of the paths themselves
+ * are materialized.
+ * Instances are immutable and can be used by any number of threads at once, so they should be compiled once and kept.
+ */
+public class JsonPathExtractor {
+    /**
+     * Root of the trie of all path segments
+     */
+    private final Segment root;
+    /**
+     * Number of distinct paths to extract
+     */
+    private final int pathCount;
+
+    /**
+     * Node in the trie of path segments
+     */
+    private static class Segment {
+        /**
+         * Segments following this one, by field name
+         */
+        private final HashMap<String, Segment> children = new HashMap<>();
+        /**
+         * Full path ending at this segment, null if no path ends here
+         */
+        private String path;
+    }
+
+    /**
+     * Creates an extractor for {@param paths}
+     * @param paths Dotted paths to extract
+     * @throws IllegalArgumentException When no paths or an empty path are given
+     */
+    private JsonPathExtractor(String[] paths) throws IllegalArgumentException {
+        if (paths == null || paths.length == 0) throw new IllegalArgumentException("No paths given");
+        this.root = new Segment();
+        int count = 0;
+        for (String path : paths) {
+            if (path == null || path.isEmpty()) throw new IllegalArgumentException(
+                    "Expected path, received null or empty String"
+            );
+            Segment current = this.root;
+            for (String part : path.split("\\.")) {
+                current = current.children.computeIfAbsent(part, k -> new Segment());
+            }
+            if (current.path == null) count++;
+            current.path = path;
+        }
+        this.pathCount = count;
+    }
+
+    /**
+     * Compiles an extractor for the given dotted paths
+     * @param paths Dotted paths to extract
+     * @return Extractor for {@param paths}
+     * @throws IllegalArgumentException When no paths or an empty path are given
+     */
+    public static JsonPathExtractor compile(String... paths) throws IllegalArgumentException {
+        return new JsonPathExtractor(paths);
+    }
+
+    /**
+     * Extracts all paths from {@param json}
+     * @param json Json document
+     * @return Values of all paths that were found, by path. Paths that do not exist are missing
+     * @throws IOException When the document is not valid json up to the point where all paths were found
+     */
+    public LinkedHashMap<String, JsonNode> extract(byte[] json) throws IOException {
+        if (json == null) throw new IllegalArgumentException("No json given");
+        try (JsonParser parser = JsonMappers.TREE_READER.createParser(json)) {
+            return this.extract(parser);
+        }
+    }
+
+    /**
+     * Extracts all paths from {@param json}
+     * @param json Json document
+     * @return Values of all paths that were found, by path. Paths that do not exist are missing
+     * @throws IOException When the document is not valid json up to the point where all paths were found
+     */
+    public LinkedHashMap<String, JsonNode> extract(String json) throws IOException {
+        if (json == null) throw new IllegalArgumentException("No json given");
+        try (JsonParser parser = JsonMappers.TREE_READER.createParser(json)) {
+            return this.extract(parser);
+        }
+    }
+
+    /**
+     * Extracts all paths from the document {@param parser} is positioned in front of
+     * @param parser Parser at the start of the document. Must have a codec for reading trees
+     * @return Values of all paths that were found, by path. Paths that do not exist are missing
+     * @throws IOException When the document is not valid json up to the point where all paths were found
+     */
+    private LinkedHashMap<String, JsonNode> extract(JsonParser parser) throws IOException {
+        LinkedHashMap<String, JsonNode> found = new LinkedHashMap<>();
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            this.walkObject(parser, this.root, found);
+        }
+        return found;
+    }
+
+    /**
+     * Walks the fields of the object the parser is currently in, until the object ends or all paths were found
+     * @param parser Parser positioned at the start of an object
+     * @param segment Segment of the trie matching the object
+     * @param found All values found so far
+     * @return True, if all paths were found and parsing can stop
+     * @throws IOException When the document is not valid json
+     */
+    private boolean walkObject(JsonParser parser, Segment segment, LinkedHashMap<String, JsonNode> found)
+            throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            Segment child = segment.children.get(parser.currentName());
+            token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+                continue;
+            }
+
+            if (child.path != null) {
+                // The value itself is wanted, paths below it are taken from the value
+                JsonNode value = parser.readValueAsTree();
+                found.put(child.path, value);
+                this.collectFromTree(value, child, found);
+            } else if (token == JsonToken.START_OBJECT) {
+                if (this.walkObject(parser, child, found)) return true;
+            } else {
+                parser.skipChildren();
+            }
+            if (found.size() == this.pathCount) return true;
+        }
+        if (token == null) throw new JsonParseException(parser, "Unexpected end of json document");
+        return false;
+    }
+
+    /**
+     * Adds all paths below {@param segment} that exist in the already materialized {@param node}
+     * @param node Value of the path ending at {@param segment}
+     * @param segment Segment of the trie matching {@param node}
+     * @param found All values found so far
+     */
+    private void collectFromTree(JsonNode node, Segment segment, LinkedHashMap<String, JsonNode> found) {
+        for (var entry : segment.children.entrySet()) {
+            JsonNode child = node.get(entry.getKey());
+            if (child == null) continue;
+            if (entry.getValue().path != null) found.put(entry.getValue().path, child);
+            this.collectFromTree(child, entry.getValue(), found);
+        }
+    }
+}
@@ -2,10 +2,13 @@ package org.hmdms.hmmanager.utils;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Utility class for json operations
  */
@@ -15,6 +18,11 @@ public abstract class JsonUtils {
      * Logger
      */
     private static final Logger logger = LoggerFactory.getLogger(JsonUtils.class);
+    /**
+     * Compiled extractors by the property they look for. Properties are constants of the calling code, so the
+     * number of entries stays small
+     */
+    private static final ConcurrentHashMap<String, JsonPathExtractor> extractors = new ConcurrentHashMap<>();
 
     /**
      * Default constructor
@@ -36,7 +44,7 @@ public abstract class JsonUtils {
         JsonNode currentNode = node;
         for (String part : parts) {
             try {
-                currentNode = node.get(part);
+                currentNode = currentNode.get(part);
                 if (currentNode == null) {
                     logger.debug(String.format("Tree ends, does not have node %s", part));
                     return false;
@@ -46,19 +54,18 @@ public abstract class JsonUtils {
                 return false;
             }
         }
-        // TODO better check what node.get returns, when the next part does not exist
         logger.debug("Given json has property that was checked");
         return true;
     }
 
     /**
      * Checks, if property {@param property} exists in Json String {@param jsonString}.
-     * First converts the jsonString into a {@link JsonNode} and then returns result of
-     * {@link JsonUtils#jsonHasProperty(JsonNode, String)}, called with the new node.
+     * Uses a {@link JsonPathExtractor}, so no tree is built and parsing stops as soon as the property was found.
+     * The extractor is compiled once per property and reused afterwards.
      * @param jsonString Json String to be checked
      * @param property Property for which the {@param jsonString} should be checked
      * @return True, if the property exists in {@param jsonString}
-     * @throws JsonProcessingException Thrown, when {@param jsonString} could not be converted into a {@link JsonNode}.
+     * @throws JsonProcessingException Thrown, when {@param jsonString} is not valid json up to the property
      * @throws IllegalArgumentException Thrown, when either of the params are null or empty.
      */
     public static boolean jsonHasProperty(String jsonString, String property)
@@ -72,9 +79,36 @@ public abstract class JsonUtils {
                 "Expected property, received null or empty String"
         );
 
-        JsonNode node = new ObjectMapper().readTree(jsonString);
-        logger.debug("Successfully parsed json String to json");
-        return jsonHasProperty(node, property);
+        return jsonHasProperty(jsonString, extractors.computeIfAbsent(property, JsonPathExtractor::compile), property);
+    }
+
+    /**
+     * Checks, if property {@param property} exists in Json String {@param jsonString}, using the precompiled
+     * {@param extractor}
+     * @param jsonString Json String to be checked
+     * @param extractor Extractor compiled for {@param property}, see {@link JsonPathExtractor#compile(String...)}
+     * @param property Property for which the {@param jsonString} should be checked
+     * @return True, if the property exists in {@param jsonString}
+     * @throws JsonProcessingException Thrown, when {@param jsonString} is not valid json up to the property
+     * @throws IllegalArgumentException Thrown, when no json string or extractor is given
+     */
+    public static boolean jsonHasProperty(String jsonString, JsonPathExtractor extractor, String property)
+            throws JsonProcessingException, IllegalArgumentException {
+
+        if (jsonString == null || jsonString.isEmpty()) throw new IllegalArgumentException(
+                "Expected jsonString, received null or empty String"
+        );
+        if (extractor == null) throw new IllegalArgumentException("Expected extractor, received null");
+
+        try {
+            return extractor.extract(jsonString).containsKey(property);
+        } catch (JsonProcessingException ex) {
+            // Thrown by the parser for broken json, with the location of the error
+            throw ex;
+        } catch (IOException ex) {
+            // Reading from a String does not do any I/O
+            throw new UncheckedIOException(ex);
+        }
     }
 
 
@@ -90,7 +124,7 @@ public abstract class JsonUtils {
             throw new IllegalArgumentException("No json string given");
         }
 
-        JsonNode node = new ObjectMapper().readTree(jsonString);
+        JsonNode node = JsonMappers.TREE_READER.readTree(jsonString);
         return node;
     }
 }
@@ -44,6 +44,8 @@ public abstract class LoggingUtils {
      * Logs the exceptions message and type with the given logger at the given level.
      * Tries to format the string to include the message and the exception with {@link String#format(String, Object...)}.
      * Stacktrace of the exception is always logged at trace level.
+     * Neither the message nor the stacktrace are built, if their level is not enabled for {@param logger}, so logging
+     * an exception costs next to nothing, when nobody reads it.
      * @param ex Exception that should be logged.
      * @param logger Logger with which to log the exception. Should be the logger of the class, which caught the
      *               Exception
@@ -66,19 +68,22 @@ public abstract class LoggingUtils {
         if (logLevel == null || logLevel.isEmpty()) level = "info";
         else level = logLevel;
 
-        // If no logstring is given, set a default string
-        String toLog = getLogString(ex, formatString);
-
         // Log the message at given level or info
-        switch (level) {
-            case "trace": logger.trace(toLog); break;
-            case "debug": logger.debug(toLog); break;
-            case "warn": logger.warn(toLog); break;
-            case "error": logger.error(toLog); break;
-            default: logger.info(toLog); break;
+        if (isEnabled(logger, level)) {
+            // If no logstring is given, set a default string
+            String toLog = getLogString(ex, formatString);
+            switch (level) {
+                case "trace": logger.trace(toLog); break;
+                case "debug": logger.debug(toLog); break;
+                case "warn": logger.warn(toLog); break;
+                case "error": logger.error(toLog); break;
+                default: logger.info(toLog); break;
+            }
         }
 
-        // Build a stacktrace string and log it
+        // Build a stacktrace string and log it. Reading the stacktrace creates all of its frames, so only do it when
+        // the stacktrace is logged at all
+        if (!logger.isTraceEnabled()) return;
         StringBuilder sb = new StringBuilder();
         for (var stel : ex.getStackTrace()) {
             sb.append(stel.toString());
@@ -87,6 +92,24 @@ public abstract class LoggingUtils {
         logger.trace(sb.toString());
     }
 
+    /**
+     * Checks, whether {@param logger} logs messages of level {@param logLevel}. Unknown levels are treated as info,
+     * like in {@link LoggingUtils#logException(Exception, Logger, String, String)}.
+     * @param logger Logger to check
+     * @param logLevel Either trace, debug, info, warn or error
+     * @return True, if messages of the level are logged
+     */
+    public static boolean isEnabled(Logger logger, String logLevel) {
+        if (logLevel == null) return logger.isInfoEnabled();
+        return switch (logLevel) {
+            case "trace" -> logger.isTraceEnabled();
+            case "debug" -> logger.isDebugEnabled();
+            case "warn" -> logger.isWarnEnabled();
+            case "error" -> logger.isErrorEnabled();
+            default -> logger.isInfoEnabled();
+        };
+    }
+
     /**
      * Builds a formatted exception message string
      * @param ex Exception which supplies the type and message
@@ -0,0 +1,115 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.AMQP;
+import org.hmdms.hmmanager.msg.transport.InMemoryTransport;
+import org.hmdms.hmmanager.msg.transport.InboundChannel;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestAckBatcher {
+
+    @Test
+    public void testZeroDelayFlushesWithTimer() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        LinkedBlockingQueue<Long> tags = new LinkedBlockingQueue<>();
+        AckBatcher batcher = null;
+        try {
+            InboundChannel in = transport.openInbound("requests", 1, executor, "test");
+            batcher = new AckBatcher(in, 10, 0);
+            in.consume((tag, props, body) -> tags.add(tag));
+            transport.publish("requests", new AMQP.BasicProperties(), new byte[0]);
+            transport.publish("requests", new AMQP.BasicProperties(), new byte[0]);
+
+            assertEquals(1L, (long) tags.poll(1, TimeUnit.SECONDS));
+            batcher.received(1);
+            batcher.completed(1);
+            // The batch is not full, the second delivery only arrives once the timer acknowledged the first one
+            assertEquals(2L, (long) tags.poll(1, TimeUnit.SECONDS));
+        } finally {
+            if (batcher != null) batcher.close();
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testDeliveriesAfterOldGapAreAcknowledgedOneByOne() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        LinkedBlockingQueue<Long> tags = new LinkedBlockingQueue<>();
+        AckBatcher batcher = null;
+        try {
+            InboundChannel in = transport.openInbound("requests", 3, executor, "test");
+            batcher = new AckBatcher(in, 1, 10, 50);
+            in.consume((tag, props, body) -> tags.add(tag));
+            for (int i = 0; i < 5; i++) {
+                transport.publish("requests", new AMQP.BasicProperties(), new byte[0]);
+            }
+
+            for (long tag = 1; tag <= 3; tag++) {
+                assertEquals(tag, (long) tags.poll(1, TimeUnit.SECONDS));
+                batcher.received(tag);
+            }
+            // Delivery 1 hangs, the completed deliveries after it must not hold the prefetch window forever
+            batcher.completed(2);
+            batcher.completed(3);
+            assertEquals(4L, (long) tags.poll(1, TimeUnit.SECONDS));
+            assertEquals(5L, (long) tags.poll(1, TimeUnit.SECONDS));
+
+            batcher.received(4);
+            batcher.received(5);
+            batcher.completed(1);
+            batcher.completed(4);
+            batcher.completed(5);
+            batcher.flush();
+            // All deliveries are acknowledged now, so the whole prefetch window is free again
+            for (int i = 0; i < 3; i++) {
+                transport.publish("requests", new AMQP.BasicProperties(), new byte[0]);
+            }
+            for (long tag = 6; tag <= 8; tag++) {
+                assertEquals(tag, (long) tags.poll(1, TimeUnit.SECONDS));
+            }
+        } finally {
+            if (batcher != null) batcher.close();
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testDelayedRejectionIsNotRedeliveredRightAway() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        LinkedBlockingQueue<Long> tags = new LinkedBlockingQueue<>();
+        AckBatcher batcher = null;
+        try {
+            InboundChannel in = transport.openInbound("requests", 1, executor, "test");
+            batcher = new AckBatcher(in, 1, 10);
+            in.consume((tag, props, body) -> tags.add(tag));
+            transport.publish("requests", new AMQP.BasicProperties(), new byte[0]);
+
+            assertEquals(1L, (long) tags.poll(1, TimeUnit.SECONDS));
+            batcher.received(1);
+            batcher.rejected(1, 300);
+            assertNull(tags.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(2L, (long) tags.poll(1, TimeUnit.SECONDS));
+
+            // Closing gives back deliveries, whose delay has not passed yet
+            batcher.received(2);
+            batcher.rejected(2, TimeUnit.MINUTES.toMillis(1));
+            batcher.close();
+            assertEquals(3L, (long) tags.poll(1, TimeUnit.SECONDS));
+        } finally {
+            if (batcher != null) batcher.close();
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package org.hmdms.hmmanager.msg;
+
+import org.hmdms.hmmanager.msg.subscribers.ISubscriber;
+import org.hmdms.hmmanager.msg.subscribers.SubscriberListener;
+import org.hmdms.hmmanager.sys.StateC;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestBroker {
+
+    /**
+     * Subscriber that only accepts messages while {@link CollectingSubscriber#accepting} is true
+     */
+    private static class CollectingSubscriber implements ISubscriber {
+        private final ArrayList<MessageInfo> received = new ArrayList<>();
+        private volatile boolean accepting = true;
+        private int capacity = Integer.MAX_VALUE;
+        private TopicC topic = TopicC.TEST;
+        private SubscriberListener listener;
+
+        @Override
+        public boolean notify(ArrayList<MessageInfo> mi) {
+            if (!this.accepting || this.received.size() + mi.size() > this.capacity) return false;
+            this.received.addAll(mi);
+            return true;
+        }
+
+        @Override
+        public TopicC getTopic() {
+            return this.topic;
+        }
+
+        @Override
+        public void setState(StateC state) { }
+
+        @Override
+        public void run() { }
+
+        @Override
+        public int remainingCapacity() {
+            return this.accepting ? this.capacity - this.received.size() : 0;
+        }
+
+        @Override
+        public void setListener(SubscriberListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    @Test
+    public void testMessageIsHandedToSubscriberDirectly() {
+        Broker broker = new Broker();
+        CollectingSubscriber sub = new CollectingSubscriber();
+        broker.addSubscriber(sub);
+
+        MessageInfo mi = MessageInfoFactory.createDefaultMessageInfo();
+        assertTrue(broker.addMessage(TopicC.TEST, mi));
+        assertEquals(1, sub.received.size());
+        assertTrue(broker.cleanup().isEmpty());
+        broker.destroy();
+    }
+
+    @Test
+    public void testQueuedMessagesAreDeliveredOnce() {
+        Broker broker = new Broker();
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.accepting = false;
+        broker.addSubscriber(sub);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+        }
+        assertTrue(sub.received.isEmpty());
+
+        sub.accepting = true;
+        assertTrue(broker.notifyAllSubscribers());
+        assertTrue(broker.notifyAllSubscribers());
+        assertEquals(5, sub.received.size());
+        broker.destroy();
+    }
+
+    @Test
+    public void testCleanupReturnsTimedOutMessages() {
+        Broker broker = new Broker();
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.accepting = false;
+        broker.addSubscriber(sub);
+
+        MessageInfo old = MessageInfoFactory.createDefaultMessageInfo();
+        old.setReceivedNanos(System.nanoTime() - TimeUnit.SECONDS.toNanos(60));
+        broker.addMessage(TopicC.TEST, old);
+        broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo());
+
+        ArrayList<MessageInfo> cleaned = broker.cleanup();
+        assertEquals(1, cleaned.size());
+        assertSame(old, cleaned.get(0));
+        broker.destroy();
+    }
+
+    @Test
+    public void testDispatchIsSignalledWhenCapacityFreesUp() {
+        Broker broker = new Broker();
+        ArrayList<Broker> signalled = new ArrayList<>();
+        broker.setListener(new BrokerListener() {
+            @Override
+            public void dispatchNeeded(Broker b) {
+                signalled.add(b);
+            }
+
+            @Override
+            public void messageCompleted(Broker b, MessageInfo mi) { }
+
+            @Override
+            public void messageExpired(Broker b, MessageInfo mi) { }
+        });
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.capacity = 2;
+        broker.addSubscriber(sub);
+
+        for (int i = 0; i < 3; i++) {
+            broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo());
+        }
+        assertEquals(2, sub.received.size());
+        assertEquals(1, signalled.size());
+
+        // Subscriber works off its messages and reports free capacity
+        sub.received.clear();
+        sub.listener.capacityAvailable(sub);
+        assertEquals(2, signalled.size());
+        broker.notifyAllSubscribers();
+        assertEquals(1, sub.received.size());
+        broker.destroy();
+    }
+
+    @Test
+    public void testCompletedMessagesLeaveInFlightTable() {
+        Broker broker = new Broker();
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.accepting = false;
+        broker.addSubscriber(sub);
+
+        for (int i = 0; i < 3; i++) {
+            broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo());
+        }
+        assertEquals(0, broker.getInFlightCount());
+
+        sub.accepting = true;
+        broker.notifyAllSubscribers();
+        assertFalse(broker.hasQueuedMessages());
+        assertEquals(3, broker.getInFlightCount());
+
+        for (MessageInfo mi : sub.received) {
+            sub.listener.messageCompleted(sub, mi);
+        }
+        assertEquals(0, broker.getInFlightCount());
+        broker.destroy();
+    }
+
+    @Test
+    public void testFullQueuesRejectMessages() {
+        Broker broker = new Broker(2);
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.accepting = false;
+        broker.addSubscriber(sub);
+
+        assertTrue(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+        assertTrue(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+        assertEquals(0, broker.getCredit());
+        assertFalse(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+
+        // Dispatching the queued messages gives the credit back
+        sub.accepting = true;
+        broker.notifyAllSubscribers();
+        assertEquals(0, broker.getQueuedCount());
+        assertEquals(2, broker.getCredit());
+        broker.destroy();
+    }
+
+    @Test
+    public void testStolenMessagesMoveToOtherBroker() {
+        Broker busy = new Broker();
+        CollectingSubscriber stuck = new CollectingSubscriber();
+        stuck.accepting = false;
+        busy.addSubscriber(stuck);
+        Broker idle = new Broker();
+        CollectingSubscriber free = new CollectingSubscriber();
+        idle.addSubscriber(free);
+
+        MessageInfo oldest = MessageInfoFactory.createDefaultMessageInfo();
+        busy.addMessage(TopicC.TEST, oldest);
+        for (int i = 0; i < 3; i++) {
+            busy.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo());
+        }
+        assertEquals(4, busy.getQueuedCount(TopicC.TEST));
+
+        ArrayList<MessageInfo> stolen = busy.steal(TopicC.TEST, 2);
+        assertEquals(2, stolen.size());
+        assertFalse(stolen.contains(oldest));
+        assertEquals(2, busy.getQueuedCount(TopicC.TEST));
+
+        idle.adopt(TopicC.TEST, stolen);
+        idle.notifyAllSubscribers();
+        assertEquals(stolen, free.received);
+        assertEquals(2, idle.getInFlightCount());
+        busy.destroy();
+        idle.destroy();
+    }
+
+    @Test
+    public void testFullTopicDoesNotBlockOtherTopics() {
+        Broker broker = new Broker(10);
+        broker.setQueueCapacity(TopicC.TEST, 2);
+        CollectingSubscriber test = new CollectingSubscriber();
+        test.accepting = false;
+        broker.addSubscriber(test);
+        CollectingSubscriber auth = new CollectingSubscriber();
+        auth.topic = TopicC.AUTH;
+        auth.accepting = false;
+        broker.addSubscriber(auth);
+
+        assertTrue(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+        assertTrue(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+        assertFalse(broker.addMessage(TopicC.TEST, MessageInfoFactory.createDefaultMessageInfo()));
+        assertEquals(0, broker.getCredit(TopicC.TEST));
+
+        // The other topic still has the rest of the broker to itself
+        for (int i = 0; i < 8; i++) {
+            assertTrue(broker.addMessage(TopicC.AUTH, MessageInfoFactory.createDefaultMessageInfo()));
+        }
+        assertFalse(broker.addMessage(TopicC.AUTH, MessageInfoFactory.createDefaultMessageInfo()));
+        assertEquals(2, broker.getQueuedCount(TopicC.TEST));
+        assertEquals(10, broker.getQueuedCount());
+        broker.destroy();
+    }
+
+    @Test
+    public void testQueuedMessageExpiresAtItsDeadline() throws InterruptedException {
+        Broker broker = new Broker();
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.accepting = false;
+        broker.addSubscriber(sub);
+
+        MessageInfo expiring = MessageInfoFactory.createDefaultMessageInfo();
+        expiring.setDeadlineNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        MessageInfo waiting = MessageInfoFactory.createDefaultMessageInfo();
+        broker.addMessage(TopicC.TEST, expiring);
+        broker.addMessage(TopicC.TEST, waiting);
+        assertTrue(broker.cleanup().isEmpty());
+
+        Thread.sleep(50 + 2 * DeadlineWheel.DEFAULT_TICK_MILLIS);
+        ArrayList<MessageInfo> cleaned = broker.cleanup();
+        assertEquals(1, cleaned.size());
+        assertSame(expiring, cleaned.get(0));
+        assertEquals(1, broker.getQueuedCount());
+
+        // The expired message is never handed to a subscriber
+        sub.accepting = true;
+        broker.notifyAllSubscribers();
+        assertEquals(1, sub.received.size());
+        assertSame(waiting, sub.received.get(0));
+        broker.destroy();
+    }
+
+    @Test
+    public void testExpiredMessageCanBeRecycledRightAway() throws InterruptedException {
+        MessageInfoFactory.setPoolSize(4);
+        Broker broker = new Broker();
+        try {
+            CollectingSubscriber sub = new CollectingSubscriber();
+            sub.accepting = false;
+            broker.addSubscriber(sub);
+
+            MessageInfo first = MessageInfoFactory.createMessageInfo(new byte[0], null);
+            MessageInfo expiring = MessageInfoFactory.createMessageInfo(new byte[0], null);
+            expiring.setDeadlineNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+            MessageInfo last = MessageInfoFactory.createMessageInfo(new byte[0], null);
+            broker.addMessage(TopicC.TEST, first);
+            broker.addMessage(TopicC.TEST, expiring);
+            broker.addMessage(TopicC.TEST, last);
+
+            Thread.sleep(50 + 2 * DeadlineWheel.DEFAULT_TICK_MILLIS);
+            ArrayList<MessageInfo> cleaned = broker.cleanup();
+            assertEquals(1, cleaned.size());
+            assertEquals(2, broker.getQueuedCount());
+
+            // The coordinator recycles the message as soon as it was answered, the next delivery reuses it
+            MessageInfoFactory.recycle(expiring);
+            MessageInfo reused = MessageInfoFactory.createMessageInfo(new byte[0], null);
+            assertSame(expiring, reused);
+            broker.addMessage(TopicC.TEST, reused);
+            assertEquals(3, broker.getQueuedCount());
+
+            sub.accepting = true;
+            broker.notifyAllSubscribers();
+            assertEquals(3, sub.received.size());
+            assertSame(first, sub.received.get(0));
+            assertSame(last, sub.received.get(1));
+            assertSame(reused, sub.received.get(2));
+            assertEquals(0, broker.getQueuedCount());
+        } finally {
+            broker.destroy();
+            MessageInfoFactory.setPoolSize(0);
+        }
+    }
+
+    @Test
+    public void testDispatchedMessageDoesNotExpire() throws InterruptedException {
+        Broker broker = new Broker();
+        CollectingSubscriber sub = new CollectingSubscriber();
+        sub.accepting = false;
+        broker.addSubscriber(sub);
+
+        MessageInfo mi = MessageInfoFactory.createDefaultMessageInfo();
+        mi.setDeadlineNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        broker.addMessage(TopicC.TEST, mi);
+        sub.accepting = true;
+        broker.notifyAllSubscribers();
+        assertEquals(1, broker.getInFlightCount());
+
+        Thread.sleep(50 + 2 * DeadlineWheel.DEFAULT_TICK_MILLIS);
+        assertTrue(broker.cleanup().isEmpty());
+        assertEquals(1, broker.getInFlightCount());
+        broker.destroy();
+    }
+}
@@ -0,0 +1,111 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.AMQP;
+import org.hmdms.hmmanager.msg.transport.InMemoryTransport;
+import org.hmdms.hmmanager.sys.StateC;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class TestCoordinator {
+    private InMemoryTransport transport;
+    private Coordinator coordinator;
+    private Thread coordinatorThread;
+
+    /**
+     * Reads config.properties with a single broker of 100 messages, that is consumed with a single channel
+     */
+    private Properties config(int prefetch) throws Exception {
+        Properties prop = new Properties();
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("config.properties")) {
+            prop.load(in);
+        }
+        prop.setProperty("msg.scaling.brokers", "1");
+        prop.setProperty("msg.scaling.brokers.autoScaling", "false");
+        prop.setProperty("msg.broker.queueCapacity", "100");
+        prop.setProperty("mq.consumer.channels", "1");
+        prop.setProperty("mq.consumer.prefetch", String.valueOf(prefetch));
+        return prop;
+    }
+
+    private Coordinator start(Properties prop) throws Exception {
+        this.transport = new InMemoryTransport();
+        this.coordinator = new Coordinator(this.transport, prop);
+        this.coordinatorThread = new Thread(this.coordinator, "coordinator");
+        this.coordinatorThread.setDaemon(true);
+        this.coordinatorThread.start();
+        assertTrue(waitFor(() -> this.coordinator.getState() == StateC.WORKING));
+        return this.coordinator;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static ArrayList<MessageInfo> messages(int count) {
+        ArrayList<MessageInfo> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(MessageInfoFactory.createMessageInfo(new byte[0], null));
+        }
+        return messages;
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        if (this.coordinator == null) return;
+        this.coordinator.setState(StateC.STOPPED);
+        this.coordinatorThread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @Test
+    public void testConsumerPausesAndResumesUnderPartialLoad() throws Exception {
+        Coordinator coordinator = this.start(this.config(40));
+        Broker broker = coordinator.getBrokers().get(0);
+        assertFalse(coordinator.isConsumerPaused());
+
+        // The prefetch window of 40 no longer fits into the remaining credit of 30
+        broker.adopt(TopicC.TEST, messages(70));
+        assertTrue(waitFor(coordinator::isConsumerPaused));
+
+        // 30 messages stay queued, the consumer must not wait until the broker is empty
+        assertEquals(40, broker.steal(TopicC.TEST, 40).size());
+        assertTrue(waitFor(() -> !coordinator.isConsumerPaused()));
+        assertEquals(30, broker.getQueuedCount(TopicC.TEST));
+    }
+
+    @Test
+    public void testSaturatedTopicDoesNotStopOtherTopics() throws Exception {
+        Properties prop = this.config(50);
+        prop.setProperty("msg.topics.AUTH.queueCapacity", "60");
+        prop.setProperty("msg.topics.FILE.queueCapacity", "30");
+        prop.setProperty("msg.topics.TEST.queueCapacity", "10");
+        Coordinator coordinator = this.start(prop);
+        Broker broker = coordinator.getBrokers().get(0);
+
+        // AUTH is full and the broker has less credit left than a prefetch window, FILE still has all of its room
+        broker.adopt(TopicC.AUTH, messages(60));
+        assertEquals(0, coordinator.getCredit(TopicC.AUTH));
+        assertTrue(coordinator.getCredit() < 50);
+        Thread.sleep(300);
+        assertFalse(coordinator.isConsumerPaused());
+
+        this.transport.publish(
+                prop.getProperty("mq.hmmanager.queue.name"),
+                new AMQP.BasicProperties(),
+                "{\"topic\": \"FILE\", \"message\": {}}".getBytes()
+        );
+        assertTrue(waitFor(() -> broker.getQueuedCount(TopicC.FILE) == 1));
+    }
+}
@@ -0,0 +1,66 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestPriorityLanes {
+
+    private static MessageInfo message(Integer priority, long receivedNanos) {
+        MessageInfo mi = new MessageInfo(new AMQP.BasicProperties.Builder().priority(priority).build());
+        mi.setReceivedNanos(receivedNanos);
+        return mi;
+    }
+
+    @Test
+    public void testHigherPriorityOvertakes() {
+        PriorityLanes lanes = new PriorityLanes();
+        long now = System.nanoTime();
+        MessageInfo bulk = message(0, now);
+        MessageInfo normal = message(null, now + 1);
+        MessageInfo login = message(9, now + 2);
+        lanes.offer(bulk);
+        lanes.offer(normal);
+        lanes.offer(login);
+        assertEquals(1, lanes.size(PriorityC.HIGH));
+
+        assertSame(login, lanes.poll());
+        assertSame(normal, lanes.poll());
+        assertSame(bulk, lanes.poll());
+        assertNull(lanes.poll());
+        assertEquals(0, lanes.size(PriorityC.LOW));
+    }
+
+    @Test
+    public void testAgedMessagesAreNotStarved() {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.setAgingNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        long now = System.nanoTime();
+        // Waited more than two levels of aging longer than the login
+        MessageInfo bulk = message(0, now - TimeUnit.MILLISECONDS.toNanos(250));
+        MessageInfo login = message(9, now);
+        lanes.offer(login);
+        lanes.offer(bulk);
+
+        assertSame(bulk, lanes.poll());
+        assertSame(login, lanes.poll());
+    }
+
+    @Test
+    public void testStrictPrioritiesWithoutAging() {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.setAgingNanos(0);
+        long now = System.nanoTime();
+        MessageInfo bulk = message(1, now - TimeUnit.HOURS.toNanos(1));
+        MessageInfo login = message(8, now);
+        lanes.offer(bulk);
+        lanes.offer(login);
+
+        assertSame(login, lanes.poll());
+        assertSame(bulk, lanes.pollLast());
+        assertTrue(lanes.isEmpty());
+    }
+}
@@ -0,0 +1,83 @@
+package org.hmdms.hmmanager.msg;
+
+import com.rabbitmq.client.AMQP;
+import org.hmdms.hmmanager.msg.transport.InMemoryTransport;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestRequestDeduplicator {
+
+    private static MessageInfo request(String replyTo, String correlationId, long deliveryTag) {
+        MessageInfo mi = new MessageInfo(
+                new AMQP.BasicProperties.Builder().replyTo(replyTo).correlationId(correlationId).build()
+        );
+        mi.setDeliveryTag(deliveryTag);
+        return mi;
+    }
+
+    @Test
+    public void testRepeatsAreCollapsedWhileInFlight() {
+        ReplyPublisher publisher = new ReplyPublisher(new InMemoryTransport(), 1, false, 1);
+        RequestDeduplicator dedup = new RequestDeduplicator(publisher, TimeUnit.SECONDS.toNanos(30), 10);
+        MessageInfo first = request("client", "1", 1);
+        MessageInfo repeat = request("client", "1", 2);
+        MessageInfo other = request("client", "2", 3);
+
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(first));
+        assertEquals(RequestDeduplicator.Outcome.DUPLICATE, dedup.register(repeat));
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(other));
+        assertEquals(2, dedup.getInFlightCount());
+
+        // Completing the repeat itself must not end the request it was attached to
+        assertTrue(dedup.completed(repeat, true).isEmpty());
+        ArrayList<RequestDeduplicator.Duplicate> duplicates = dedup.completed(first, false);
+        assertEquals(1, duplicates.size());
+        assertEquals(2L, duplicates.get(0).getDeliveryTag());
+        assertEquals(1, dedup.getInFlightCount());
+
+        // Without a kept reply, the next repeat is worked on again
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(request("client", "1", 4)));
+    }
+
+    @Test
+    public void testOnlySuccessfulRepliesAreKept() throws Exception {
+        ReplyPublisher publisher = new ReplyPublisher(new InMemoryTransport(), 1, false, 1);
+        RequestDeduplicator dedup = new RequestDeduplicator(publisher, TimeUnit.SECONDS.toNanos(30), 10);
+
+        MessageInfo failed = request("client", "1", 1);
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(failed));
+        ReplyPublisher.Reply error = ReplyPublisher.Reply.encode(
+                failed.getMessageProps(), new ErrorReply(ErrorC.INTERNAL, "Something went wrong on our side")
+        );
+        assertFalse(error.isCacheable());
+        assertEquals(1, publisher.replyAll(List.of(error)));
+        dedup.completed(failed, true);
+        // A retry after an error is worked on again
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(request("client", "1", 2)));
+
+        MessageInfo answered = request("client", "2", 3);
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(answered));
+        assertTrue(publisher.reply(answered.getMessageProps(), "{}".getBytes(StandardCharsets.UTF_8), null));
+        dedup.completed(answered, true);
+        assertEquals(RequestDeduplicator.Outcome.ANSWERED, dedup.register(request("client", "2", 4)));
+    }
+
+    @Test
+    public void testRequestsWithoutCorrelationIdAreNotDeduplicated() {
+        ReplyPublisher publisher = new ReplyPublisher(new InMemoryTransport(), 1, false, 1);
+        RequestDeduplicator dedup = new RequestDeduplicator(publisher, TimeUnit.SECONDS.toNanos(30), 10);
+        MessageInfo first = request("client", null, 1);
+        dedup.replied(first.getMessageProps(), "{}".getBytes(StandardCharsets.UTF_8), null, true);
+
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(first));
+        assertEquals(RequestDeduplicator.Outcome.NEW, dedup.register(request("client", null, 2)));
+        assertEquals(0, dedup.getInFlightCount());
+        assertTrue(dedup.completed(first, true).isEmpty());
+    }
+}
@@ -1,14 +1,44 @@
 package org.hmdms.hmmanager.msg;
 
+import org.hmdms.hmmanager.msg.subscribers.ISubscriber;
 import org.hmdms.hmmanager.msg.subscribers.Subscriber;
+import org.hmdms.hmmanager.msg.subscribers.SubscriberListener;
+import org.hmdms.hmmanager.sys.StateC;
 import org.hmdms.hmmanager.utils.ClassFinder;
 import org.junit.Test;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 
 public class TestSubscribers {
 
+    /**
+     * Subscriber that records the size of every batch it is given
+     */
+    private static class BatchingSubscriber extends Subscriber {
+        private final List<Integer> batches = new CopyOnWriteArrayList<>();
+
+        private BatchingSubscriber() {
+            super(null);
+            this.topic = TopicC.TEST;
+        }
+
+        @Override
+        protected void handleMessages(ArrayList<MessageInfo> batch) {
+            this.batches.add(batch.size());
+        }
+
+        @Override
+        protected void handleMessage(MessageInfo mi) { }
+    }
+
     @Test
     public void findAllSubscribers() throws InvocationTargetException, InstantiationException, IllegalAccessException {
         Set<Class<? extends Subscriber>> subs = ClassFinder.findMessageSubscribers();
@@ -19,4 +49,49 @@ public class TestSubscribers {
             System.out.println(s);
         }
     }
+
+    @Test
+    public void testBatchSizeFollowsBacklog() {
+        assertEquals(1, Subscriber.batchSize(50, 1, 1));
+        assertEquals(1, Subscriber.batchSize(1, 500, 1));
+        assertEquals(20, Subscriber.batchSize(50, 20, 1));
+        assertEquals(50, Subscriber.batchSize(50, 500, 1));
+        // The backlog is shared between parallel workers
+        assertEquals(5, Subscriber.batchSize(50, 20, 4));
+        assertEquals(1, Subscriber.batchSize(50, 3, 4));
+    }
+
+    @Test
+    public void testQueuedMessagesAreTakenInBatches() throws InterruptedException {
+        BatchingSubscriber sub = new BatchingSubscriber();
+        sub.setMaxBatchSize(4);
+        CountDownLatch completed = new CountDownLatch(10);
+        sub.setListener(new SubscriberListener() {
+            @Override
+            public void messageCompleted(ISubscriber subscriber, MessageInfo mi) {
+                completed.countDown();
+            }
+
+            @Override
+            public void messageExpired(ISubscriber subscriber, MessageInfo mi) { }
+
+            @Override
+            public void capacityAvailable(ISubscriber subscriber) { }
+        });
+
+        ArrayList<MessageInfo> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            messages.add(MessageInfoFactory.createDefaultMessageInfo());
+        }
+        assertTrue(sub.notify(messages));
+
+        Thread t = new Thread(sub);
+        t.start();
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(4, 4, 2), sub.batches);
+        assertEquals(Subscriber.DEFAULT_CAPACITY, sub.remainingCapacity());
+
+        sub.setState(StateC.STOPPED);
+        t.join(TimeUnit.SECONDS.toMillis(5));
+    }
 }
@@ -0,0 +1,42 @@
+package org.hmdms.hmmanager.msg.codecs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.hmdms.hmmanager.core.user.LoginRequest;
+import org.hmdms.hmmanager.msg.ErrorC;
+import org.hmdms.hmmanager.msg.ErrorReply;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMessageCodecs {
+
+    @Test
+    public void testSelectsCodecByContentType() {
+        assertSame(MessageCodecs.JSON, MessageCodecs.forContentType(null));
+        assertSame(MessageCodecs.JSON, MessageCodecs.forContentType("application/json; charset=utf-8"));
+        assertSame(MessageCodecs.JSON, MessageCodecs.forContentType("text/plain"));
+        assertSame(MessageCodecs.SMILE, MessageCodecs.forContentType("application/x-jackson-smile"));
+        assertSame(MessageCodecs.CBOR, MessageCodecs.forContentType("Application/CBOR"));
+    }
+
+    @Test
+    public void testBinaryCodecsRoundTrip() throws Exception {
+        LoginRequest request = new LoginRequest();
+        request.setUsername("user");
+        request.setPassword("secret");
+        for (MessageCodec codec : new MessageCodec[] {MessageCodecs.JSON, MessageCodecs.SMILE, MessageCodecs.CBOR}) {
+            JsonNode node = codec.readTree(codec.write(request));
+            assertEquals(codec.getContentType(), "user", node.get("username").asText());
+            assertEquals(codec.getContentType(), "secret", node.get("password").asText());
+        }
+    }
+
+    @Test
+    public void testErrorReplyIsStructured() throws Exception {
+        JsonNode node = MessageCodecs.JSON.readTree(
+                MessageCodecs.JSON.write(new ErrorReply(ErrorC.TIMEOUT, "Request timed out"))
+        );
+        assertEquals("TIMEOUT", node.get("error").asText());
+        assertEquals("Request timed out", node.get("message").asText());
+    }
+}
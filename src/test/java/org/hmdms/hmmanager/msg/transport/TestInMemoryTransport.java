@@ -0,0 +1,68 @@
+package org.hmdms.hmmanager.msg.transport;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestInMemoryTransport {
+
+    @Test
+    public void testDeliveriesRespectPrefetchAndAreNotCopied() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        LinkedBlockingQueue<Long> tags = new LinkedBlockingQueue<>();
+        byte[] first = "{\"n\":1}".getBytes();
+        byte[][] received = new byte[1][];
+        try {
+            InboundChannel in = transport.openInbound("requests", 2, executor, "test");
+            in.consume((tag, props, body) -> {
+                if (tag == 1) received[0] = body;
+                tags.add(tag);
+            });
+            for (int i = 0; i < 3; i++) {
+                transport.publish("requests", new AMQP.BasicProperties(), i == 0 ? first : new byte[0]);
+            }
+
+            assertEquals(1L, (long) tags.poll(1, TimeUnit.SECONDS));
+            assertEquals(2L, (long) tags.poll(1, TimeUnit.SECONDS));
+            // The third message waits until a delivery is acknowledged
+            assertNull(tags.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(1, transport.getQueuedCount("requests"));
+            assertSame(first, received[0]);
+
+            in.ack(1, false);
+            assertEquals(3L, (long) tags.poll(1, TimeUnit.SECONDS));
+            assertEquals(0, transport.getQueuedCount("requests"));
+        } finally {
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testRejectedDeliveriesAreDeliveredAgain() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        LinkedBlockingQueue<String> ids = new LinkedBlockingQueue<>();
+        try {
+            InboundChannel in = transport.openInbound("requests", 1, executor, "test");
+            in.consume((tag, props, body) -> ids.add(tag + ":" + props.getCorrelationId()));
+            OutboundChannel out = transport.openOutbound(true);
+            out.publish("requests", new AMQP.BasicProperties.Builder().correlationId("a").build(), new byte[0]);
+            out.waitForConfirms(100);
+
+            assertEquals("1:a", ids.poll(1, TimeUnit.SECONDS));
+            in.nack(1, false, true);
+            assertEquals("2:a", ids.poll(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+}
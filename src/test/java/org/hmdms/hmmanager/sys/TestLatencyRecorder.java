@@ -0,0 +1,37 @@
+package org.hmdms.hmmanager.sys;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLatencyRecorder {
+
+    @Test
+    public void testPercentileOfRecentSamples() {
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        for (int i = 1; i <= 100; i++) {
+            recorder.record(i);
+        }
+        assertEquals(99, recorder.percentile(99));
+        assertEquals(50, recorder.percentile(50));
+
+        // Only the latest samples are kept once the buffer is full
+        for (int i = 0; i < 100; i++) {
+            recorder.record(1000);
+        }
+        assertEquals(1000, recorder.percentile(1));
+    }
+
+    @Test
+    public void testResetDiscardsSamples() {
+        LatencyRecorder recorder = new LatencyRecorder(10);
+        recorder.record(500);
+        recorder.reset();
+        assertEquals(0, recorder.getSampleCount());
+        assertEquals(0, recorder.percentile(99));
+
+        recorder.record(5);
+        assertEquals(1, recorder.getSampleCount());
+        assertEquals(5, recorder.percentile(99));
+    }
+}
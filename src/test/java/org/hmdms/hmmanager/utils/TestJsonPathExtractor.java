@@ -0,0 +1,66 @@
+package org.hmdms.hmmanager.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.*;
+
+public class TestJsonPathExtractor {
+
+    private static final String LOGIN = "{\"topic\":\"AUTH\",\"meta\":{\"tags\":[1,2,{\"username\":\"x\"}]},"
+            + "\"message\":{\"username\":\"user\",\"password\":\"secret\",\"options\":{\"remember\":true}}}";
+
+    @Test
+    public void testExtractsNestedPaths() throws Exception {
+        JsonPathExtractor extractor = JsonPathExtractor.compile("topic", "message.username", "message.options.remember");
+        LinkedHashMap<String, JsonNode> found = extractor.extract(LOGIN);
+        assertEquals(3, found.size());
+        assertEquals("AUTH", found.get("topic").asText());
+        assertEquals("user", found.get("message.username").asText());
+        assertTrue(found.get("message.options.remember").asBoolean());
+    }
+
+    @Test
+    public void testMissingPathsAreNotReturned() throws Exception {
+        LinkedHashMap<String, JsonNode> found = JsonPathExtractor.compile("message.ticket", "username").extract(LOGIN);
+        assertTrue(found.isEmpty());
+    }
+
+    @Test
+    public void testStopsOnceAllPathsWereFound() throws Exception {
+        // Everything after the topic is broken, but never read
+        LinkedHashMap<String, JsonNode> found = JsonPathExtractor.compile("topic").extract("{\"topic\":\"AUTH\",\"x\":[}");
+        assertEquals("AUTH", found.get("topic").asText());
+    }
+
+    @Test
+    public void testPathsBelowExtractedValue() throws Exception {
+        LinkedHashMap<String, JsonNode> found = JsonPathExtractor.compile("message", "message.password").extract(LOGIN);
+        assertTrue(found.get("message").isObject());
+        assertEquals("secret", found.get("message.password").asText());
+    }
+
+    @Test
+    public void testJsonHasPropertyWalksNestedPath() throws Exception {
+        assertTrue(JsonUtils.jsonHasProperty(LOGIN, "message.options.remember"));
+        assertFalse(JsonUtils.jsonHasProperty(LOGIN, "message.remember"));
+        JsonNode node = JsonUtils.getNodeFromString(LOGIN);
+        assertTrue(JsonUtils.jsonHasProperty(node, "message.options.remember"));
+        assertFalse(JsonUtils.jsonHasProperty(node, "options.remember"));
+    }
+
+    @Test
+    public void testJsonHasPropertyKeepsParserErrors() throws Exception {
+        JsonPathExtractor extractor = JsonPathExtractor.compile("message.password");
+        assertTrue(JsonUtils.jsonHasProperty(LOGIN, extractor, "message.password"));
+        try {
+            JsonUtils.jsonHasProperty("{\"message\": {\"user\" 1}}", "message.password");
+            fail("Broken json was accepted");
+        } catch (JsonProcessingException ex) {
+            assertNotNull(ex.getLocation());
+        }
+    }
+}